@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import static android.view.Display.DEFAULT_DISPLAY;
+
+import static androidx.test.platform.app.InstrumentationRegistry.getInstrumentation;
+
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.spyOn;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.ActivityTaskManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.hardware.display.DisplayManager;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.view.Display;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Performance tests for {@link CarLaunchParamsModifier#onCalculate}, which is called for every
+ * Activity launch.
+ *
+ * <p>The window manager objects are mocked, so the absolute numbers include Mockito's overhead;
+ * they're meant to be compared between builds, not to be read as on-device launch latency.
+ *
+ * Build/Install/Run:
+ *  atest CarServicesPerfTests:CarLaunchParamsModifierPerfTest
+ */
+@RunWith(Parameterized.class)
+public final class CarLaunchParamsModifierPerfTest {
+
+    private static final int FIRST_PASSENGER_DISPLAY_ID = 10;
+    private static final int DRIVER_USER_ID = 10;
+    private static final int FIRST_PASSENGER_USER_ID = 11;
+    private static final int NUMBER_OF_SOURCE_PREFERRED_COMPONENTS = 1_000;
+    private static final int NUMBER_OF_PERSISTENT_ACTIVITIES = 1_000;
+
+    @Parameterized.Parameters(name = "passengerDisplays={0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] {{1}, {2}, {4}, {8}});
+    }
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final int mNumberOfPassengerDisplays;
+
+    private MockitoSession mMockingSession;
+    private CarLaunchParamsModifier mModifier;
+    private RootWindowContainer mRootWindowContainer;
+
+    private Task mTask;
+    private ActivityRecord mActivity;
+    private ActivityRecord mSource;
+    private final LaunchParamsController.LaunchParams mCurrentParams =
+            new LaunchParamsController.LaunchParams();
+    private final LaunchParamsController.LaunchParams mOutParams =
+            new LaunchParamsController.LaunchParams();
+
+    private TaskDisplayArea mDriverDisplayArea;
+    private final List<TaskDisplayArea> mPassengerDisplayAreas = new ArrayList<>();
+    private int[] mPassengerDisplayIds;
+
+    public CarLaunchParamsModifierPerfTest(int numberOfPassengerDisplays) {
+        mNumberOfPassengerDisplays = numberOfPassengerDisplays;
+    }
+
+    @Before
+    public void setUp() {
+        mMockingSession = mockitoSession()
+                .mockStatic(ActivityTaskManager.class)
+                .strictness(Strictness.LENIENT)
+                .startMocking();
+        Context context = getInstrumentation().getTargetContext();
+        spyOn(context);
+        doReturn(mock(DisplayManager.class)).when(context)
+                .getSystemService(eq(DisplayManager.class));
+
+        ActivityTaskManagerService atm = mock(ActivityTaskManagerService.class);
+        doReturn(atm).when(() -> ActivityTaskManager.getService());
+        atm.mTaskSupervisor = mock(ActivityTaskSupervisor.class);
+        when(atm.mTaskSupervisor.getLaunchParamsController())
+                .thenReturn(mock(LaunchParamsController.class));
+        mRootWindowContainer = mock(RootWindowContainer.class);
+        atm.mRootWindowContainer = mRootWindowContainer;
+
+        mDriverDisplayArea = mockDisplay(DEFAULT_DISPLAY);
+        mPassengerDisplayIds = new int[mNumberOfPassengerDisplays];
+        for (int i = 0; i < mNumberOfPassengerDisplays; i++) {
+            mPassengerDisplayIds[i] = FIRST_PASSENGER_DISPLAY_ID + i;
+            mPassengerDisplayAreas.add(mockDisplay(mPassengerDisplayIds[i]));
+        }
+
+        mTask = mock(Task.class);
+        mActivity = mock(ActivityRecord.class);
+        mActivity.info = new ActivityInfo();
+        mActivity.info.packageName = "com.android.car.perftests";
+        mActivity.info.name = "LaunchedActivity";
+        mSource = mock(ActivityRecord.class);
+        when(mSource.getDisplayArea()).thenReturn(mDriverDisplayArea);
+        when(mSource.getDisplayContent()).thenReturn(mDriverDisplayArea.mDisplayContent);
+
+        mModifier = new CarLaunchParamsModifier(context);
+        mModifier.init();
+        mModifier.handleCurrentUserSwitching(DRIVER_USER_ID);
+        mModifier.setPassengerDisplays(mPassengerDisplayIds);
+        // Every passenger gets one display
+        for (int i = 0; i < mNumberOfPassengerDisplays; i++) {
+            mModifier.setDisplayAllowListForUser(FIRST_PASSENGER_USER_ID + i,
+                    new int[] {mPassengerDisplayIds[i]});
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mMockingSession.finishMocking();
+    }
+
+    @Test
+    public void testDriverLaunch() {
+        runOnCalculate(DRIVER_USER_ID, mDriverDisplayArea);
+    }
+
+    @Test
+    public void testPassengerLaunch_allowedDisplay() {
+        runOnCalculate(lastPassengerUserId(), lastPassengerDisplayArea());
+    }
+
+    @Test
+    public void testPassengerLaunch_remappedDisplay() {
+        runOnCalculate(lastPassengerUserId(), mDriverDisplayArea);
+    }
+
+    @Test
+    public void testPassengerLaunch_sourcePreferred() {
+        List<ComponentName> components = new ArrayList<>(NUMBER_OF_SOURCE_PREFERRED_COMPONENTS);
+        for (int i = 0; i < NUMBER_OF_SOURCE_PREFERRED_COMPONENTS - 1; i++) {
+            components.add(new ComponentName("com.android.car.perftests" + i, "Activity" + i));
+        }
+        components.add(mActivity.info.getComponentName());
+        mModifier.setSourcePreferredComponents(/* enableSourcePreferred= */ true, components);
+        when(mSource.getDisplayArea()).thenReturn(lastPassengerDisplayArea());
+
+        runOnCalculate(lastPassengerUserId(), /* requestedDisplayArea= */ null);
+    }
+
+    @Test
+    public void testPassengerLaunch_persistentActivity() {
+        TaskDisplayArea displayArea = lastPassengerDisplayArea();
+        int displayId = mPassengerDisplayIds[mNumberOfPassengerDisplays - 1];
+        for (int i = 0; i < NUMBER_OF_PERSISTENT_ACTIVITIES - 1; i++) {
+            mModifier.setPersistentActivity(
+                    new ComponentName("com.android.car.perftests" + i, "Activity" + i),
+                    displayId, displayArea.mFeatureId);
+        }
+        mModifier.setPersistentActivity(mActivity.info.getComponentName(), displayId,
+                displayArea.mFeatureId);
+
+        runOnCalculate(lastPassengerUserId(), /* requestedDisplayArea= */ null);
+    }
+
+    @Test
+    public void testPassengerLaunch_concurrentAllowlistUpdates() throws Exception {
+        int userId = lastPassengerUserId();
+        int[] allowlist = {mPassengerDisplayIds[mNumberOfPassengerDisplays - 1]};
+        Thread updater = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Same allowlist, so the results of the launches don't change
+                mModifier.setDisplayAllowListForUser(userId, allowlist);
+            }
+        }, "CarLaunchParamsModifierPerfTest.updater");
+        updater.start();
+        try {
+            runOnCalculate(userId, mDriverDisplayArea);
+        } finally {
+            updater.interrupt();
+            updater.join();
+        }
+    }
+
+    private void runOnCalculate(int userId, TaskDisplayArea requestedDisplayArea) {
+        mTask.mUserId = userId;
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mCurrentParams.mPreferredTaskDisplayArea = requestedDisplayArea;
+            mOutParams.mPreferredTaskDisplayArea = null;
+            mModifier.onCalculate(mTask, /* layout= */ null, mActivity, mSource,
+                    /* options= */ null, /* request= */ null, /* phase= */ 0, mCurrentParams,
+                    mOutParams);
+        }
+    }
+
+    private int lastPassengerUserId() {
+        return FIRST_PASSENGER_USER_ID + mNumberOfPassengerDisplays - 1;
+    }
+
+    private TaskDisplayArea lastPassengerDisplayArea() {
+        return mPassengerDisplayAreas.get(mNumberOfPassengerDisplays - 1);
+    }
+
+    private TaskDisplayArea mockDisplay(int displayId) {
+        Display display = mock(Display.class);
+        when(display.getDisplayId()).thenReturn(displayId);
+        DisplayContent dc = mock(DisplayContent.class);
+        when(dc.getDisplay()).thenReturn(display);
+        when(dc.isTrusted()).thenReturn(true);
+        TaskDisplayArea displayArea = mock(TaskDisplayArea.class);
+        displayArea.mDisplayContent = dc;
+        when(displayArea.getDisplayId()).thenReturn(displayId);
+        when(dc.getDefaultTaskDisplayArea()).thenReturn(displayArea);
+        doAnswer((invocation) -> {
+            Function<TaskDisplayArea, TaskDisplayArea> callback = invocation.getArgument(0);
+            return callback.apply(displayArea);
+        }).when(dc).getItemFromTaskDisplayAreas(any());
+        when(mRootWindowContainer.getDisplayContentOrCreate(displayId)).thenReturn(dc);
+        return displayArea;
+    }
+}
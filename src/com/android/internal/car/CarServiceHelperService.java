@@ -60,6 +60,9 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.EventLog;
 import android.util.IndentingPrintWriter;
+import android.util.IntArray;
+import android.util.LongArray;
+import android.util.SparseBooleanArray;
 import android.util.TimeUtils;
 
 import com.android.car.internal.ICarServiceHelper;
@@ -69,6 +72,7 @@ import com.android.car.internal.common.EventLogTags;
 import com.android.car.internal.common.UserHelperLite;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.IResultReceiver;
 import com.android.server.Dumpable;
 import com.android.server.LocalServices;
@@ -81,20 +85,14 @@ import com.android.server.utils.Slogf;
 import com.android.server.utils.TimingsTraceAndSlog;
 import com.android.server.wm.CarLaunchParamsModifier;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * System service side companion service for CarService. Starts car service and provide necessary
@@ -117,8 +115,6 @@ public class CarServiceHelperService extends SystemService
             "android.hardware.automotive.audiocontrol@2.0::IAudioControl"
     );
 
-    // Message ID representing post-processing of process dumping.
-    private static final int WHAT_POST_PROCESS_DUMPING = 1;
     // Message ID representing process killing.
     private static final int WHAT_PROCESS_KILL = 2;
     // Message ID representing service unresponsiveness.
@@ -126,8 +122,30 @@ public class CarServiceHelperService extends SystemService
 
     private static final long CAR_SERVICE_BINDER_CALL_TIMEOUT = 15_000;
 
+    private static final long NATIVE_LIBRARY_LOAD_TIMEOUT_MS = 10_000;
+
+    // How long the interesting native pids are used before being looked up again
+    @VisibleForTesting
+    static final long INTERESTING_NATIVE_PIDS_TTL_MS = 60_000;
+
     private static final long LIFECYCLE_TIMESTAMP_IGNORE = 0;
 
+    // Time the car watchdog daemon gives us to terminate the unresponsive clients, counted from
+    // when they're reported.
+    @VisibleForTesting
+    static final long TERMINATION_BUDGET_MS = 5_000L;
+    // Below this budget, the interesting native processes are not dumped along with the
+    // unresponsive clients.
+    @VisibleForTesting
+    static final long FULL_DUMP_MIN_BUDGET_MS = 3_000L;
+    // Below this budget, the unresponsive clients are killed without being dumped.
+    @VisibleForTesting
+    static final long DUMP_MIN_BUDGET_MS = 500L;
+    // Unresponsive clients reported while the process terminator is busy are merged; past this
+    // limit, they are killed without being dumped.
+    @VisibleForTesting
+    static final int MAX_DUMPED_PIDS = 64;
+
     private final ICarServiceHelperImpl mHelper = new ICarServiceHelperImpl();
     private final Context mContext;
     private final Object mLock = new Object();
@@ -135,13 +153,24 @@ public class CarServiceHelperService extends SystemService
     private IBinder mCarServiceBinder;
     @GuardedBy("mLock")
     private boolean mSystemBootCompleted;
+    // Cache of getInterestingNativePids()
+    @GuardedBy("mLock")
+    @Nullable
+    private ArrayList<Integer> mInterestingNativePids;
+    @GuardedBy("mLock")
+    private long mInterestingNativePidsUptimeMs;
+    @GuardedBy("mLock")
+    private boolean mInterestingNativePidsRefreshPending;
 
     private final CarLaunchParamsModifier mCarLaunchParamsModifier;
 
     private final Handler mHandler;
     private final HandlerThread mHandlerThread = new HandlerThread("CarServiceHelperService");
 
-    private final ProcessTerminator mProcessTerminator = new ProcessTerminator();
+    // Counted down once loadNativeLibrary() returns, as it's called in the background
+    private final CountDownLatch mNativeLibraryLoaded = new CountDownLatch(1);
+
+    private final ProcessTerminator mProcessTerminator;
     private final CarServiceConnectedCallback mCarServiceConnectedCallback =
             new CarServiceConnectedCallback();
     private final CarServiceProxy mCarServiceProxy;
@@ -206,7 +235,8 @@ public class CarServiceHelperService extends SystemService
                 new CarLaunchParamsModifier(context),
                 new CarWatchdogDaemonHelper(TAG),
                 /* carServiceOperationManager= */ null,
-                /* carDevicePolicySafetyChecker= */ null
+                /* carDevicePolicySafetyChecker= */ null,
+                /* procfsReader= */ null
         );
     }
 
@@ -216,7 +246,8 @@ public class CarServiceHelperService extends SystemService
             CarLaunchParamsModifier carLaunchParamsModifier,
             CarWatchdogDaemonHelper carWatchdogDaemonHelper,
             @Nullable CarServiceProxy carServiceOperationManager,
-            @Nullable CarDevicePolicySafetyChecker carDevicePolicySafetyChecker) {
+            @Nullable CarDevicePolicySafetyChecker carDevicePolicySafetyChecker,
+            @Nullable ProcfsReader procfsReader) {
         super(context);
 
         mContext = context;
@@ -227,6 +258,8 @@ public class CarServiceHelperService extends SystemService
         mCarServiceProxy =
                 carServiceOperationManager == null ? new CarServiceProxy(this)
                         : carServiceOperationManager;
+        mProcessTerminator = new ProcessTerminator(
+                procfsReader == null ? new ProcfsReader() : procfsReader);
         UserManagerInternal umi = LocalServices.getService(UserManagerInternal.class);
         if (umi != null) {
             umi.addUserLifecycleListener(new UserLifecycleListener() {
@@ -255,14 +288,20 @@ public class CarServiceHelperService extends SystemService
         TimingsTraceAndSlog t = newTimingsTraceAndSlog();
         if (phase == SystemService.PHASE_THIRD_PARTY_APPS_CAN_START) {
             t.traceBegin("onBootPhase.3pApps");
-            mCarLaunchParamsModifier.init();
+            // The modifier must be registered before the boot user hand-off, as CarService
+            // launches the home of the boot user, which must follow the passenger display policy.
+            initCarLaunchParamsModifier(t);
             setupAndStartUsers(t);
             t.traceEnd();
         } else if (phase == SystemService.PHASE_BOOT_COMPLETED) {
             t.traceBegin("onBootPhase.completed");
             synchronized (mLock) {
                 mSystemBootCompleted = true;
+                mInterestingNativePidsRefreshPending = true;
             }
+            // HALs are running by now, so the cache is ready when a process needs to be dumped.
+            // Not on mHandler, as querying hwservicemanager would delay CarService connections.
+            BackgroundThread.getExecutor().execute(() -> refreshInterestingNativePids());
             try {
                 mCarWatchdogDaemonHelper.notifySystemStateChange(
                         StateType.BOOT_PHASE, phase, /* arg2= */ 0);
@@ -277,11 +316,8 @@ public class CarServiceHelperService extends SystemService
     public void onStart() {
         EventLog.writeEvent(EventLogTags.CAR_HELPER_START);
 
-        IntentFilter filter = new IntentFilter(Intent.ACTION_REBOOT);
-        filter.addAction(Intent.ACTION_SHUTDOWN);
-        mContext.registerReceiverForAllUsers(mShutdownEventReceiver, filter, null, null);
-        mCarWatchdogDaemonHelper.addOnConnectionChangeListener(mConnectionListener);
-        mCarWatchdogDaemonHelper.connect();
+        // Bind first, so CarService starts as early as possible; the connection is handled on
+        // mHandler, which is why the native library is loaded on another thread.
         Intent intent = new Intent();
         intent.setPackage("com.android.car");
         intent.setAction(CAR_SERVICE_INTERFACE);
@@ -289,7 +325,19 @@ public class CarServiceHelperService extends SystemService
                 mHandler, UserHandle.SYSTEM)) {
             Slogf.wtf(TAG, "cannot start car service");
         }
-        loadNativeLibrary();
+        BackgroundThread.getExecutor().execute(() -> {
+            try {
+                loadNativeLibrary();
+            } finally {
+                mNativeLibraryLoaded.countDown();
+            }
+        });
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_REBOOT);
+        filter.addAction(Intent.ACTION_SHUTDOWN);
+        mContext.registerReceiverForAllUsers(mShutdownEventReceiver, filter, null, null);
+        mCarWatchdogDaemonHelper.addOnConnectionChangeListener(mConnectionListener);
+        mCarWatchdogDaemonHelper.connect();
     }
 
     @Override
@@ -298,7 +346,12 @@ public class CarServiceHelperService extends SystemService
             pw.printf("System boot completed: %b\n", mSystemBootCompleted);
             pw.print("First unlocked user duration: ");
             TimeUtils.formatDuration(mFirstUnlockedUserDuration, pw); pw.println();
-            pw.printf("Queued tasks: %d\n", mProcessTerminator.mQueuedTask);
+            mProcessTerminator.dump(pw);
+            pw.println("Watchdog termination metrics:");
+            pw.increaseIndent();
+            mProcessTerminator.dumpMetrics(pw);
+            pw.decreaseIndent();
+            mCarLaunchParamsModifier.dump(pw);
             mCarServiceProxy.dump(pw);
             mCarDevicePolicySafetyChecker.dump(pw);
             return;
@@ -309,6 +362,17 @@ public class CarServiceHelperService extends SystemService
             return;
         }
 
+        if ("--reconnection-metrics".equals(args[0])) {
+            mCarServiceProxy.dumpReconnectionMetrics(pw);
+            return;
+        }
+
+        if ("--watchdog-stats".equals(args[0])) {
+            mProcessTerminator.dump(pw);
+            mProcessTerminator.dumpMetrics(pw);
+            return;
+        }
+
         if ("--is-operation-safe".equals(args[0]) & args.length > 1) {
             String arg1 = args[1];
             int operation = 0;
@@ -428,6 +492,19 @@ public class CarServiceHelperService extends SystemService
         System.loadLibrary("car-framework-service-jni");
     }
 
+    private void waitForNativeLibrary() {
+        try {
+            if (!mNativeLibraryLoaded.await(NATIVE_LIBRARY_LOAD_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS)) {
+                Slogf.wtf(TAG, "Native library not loaded after %dms",
+                        NATIVE_LIBRARY_LOAD_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Slogf.w(TAG, "Interrupted while waiting for the native library");
+        }
+    }
+
     private boolean isPreCreated(@NonNull TargetUser user, @UserLifecycleEventType int eventType) {
         if (!user.isPreCreated()) return false;
 
@@ -447,6 +524,7 @@ public class CarServiceHelperService extends SystemService
             mCarServiceBinder = iBinder;
             Slogf.i(TAG, "**CarService connected**");
         }
+        mCarServiceProxy.onCarServiceBinderConnected();
 
         mHandler.removeMessages(WHAT_SERVICE_UNRESPONSIVE);
         mHandler.sendMessageDelayed(
@@ -465,6 +543,12 @@ public class CarServiceHelperService extends SystemService
         return new TimingsTraceAndSlog(TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
     }
 
+    private void initCarLaunchParamsModifier(@NonNull TimingsTraceAndSlog t) {
+        t.traceBegin("initCarLaunchParamsModifier");
+        mCarLaunchParamsModifier.init();
+        t.traceEnd();
+    }
+
     private void setupAndStartUsers(@NonNull TimingsTraceAndSlog t) {
         // TODO(b/156263735): decide if it should return in case the device's on Retail Mode
         t.traceBegin("setupAndStartUsers");
@@ -541,7 +625,8 @@ public class CarServiceHelperService extends SystemService
     // Adapted from frameworks/base/services/core/java/com/android/server/Watchdog.java
     // TODO(b/131861630) use implementation common with Watchdog.java
     //
-    private static ArrayList<Integer> getInterestingNativePids() {
+    @VisibleForTesting
+    static ArrayList<Integer> getInterestingNativePids() {
         ArrayList<Integer> pids = getInterestingHalPids();
 
         int[] nativePids = Process.getPidsForCommands(Watchdog.NATIVE_STACKS_OF_INTEREST);
@@ -555,14 +640,57 @@ public class CarServiceHelperService extends SystemService
         return pids;
     }
 
+    /**
+     * Gets the interesting native pids from a cache, as the dumps happen when the system is
+     * already struggling and looking them up queries hwservicemanager.
+     *
+     * <p>Once the cache is older than {@link #INTERESTING_NATIVE_PIDS_TTL_MS}, it's still used,
+     * but refreshed in the background for the next time. Before the cache is first filled, they
+     * are looked up synchronously, unless that's being done already, in which case none is
+     * returned.
+     */
+    private ArrayList<Integer> getCachedInterestingNativePids() {
+        return getCachedInterestingNativePids(SystemClock.uptimeMillis());
+    }
+
+    @VisibleForTesting
+    ArrayList<Integer> getCachedInterestingNativePids(long nowUptimeMs) {
+        synchronized (mLock) {
+            if (mInterestingNativePids != null) {
+                if (!mInterestingNativePidsRefreshPending && nowUptimeMs
+                        - mInterestingNativePidsUptimeMs > INTERESTING_NATIVE_PIDS_TTL_MS) {
+                    mInterestingNativePidsRefreshPending = true;
+                    BackgroundThread.getExecutor().execute(() -> refreshInterestingNativePids());
+                }
+                return new ArrayList<>(mInterestingNativePids);
+            }
+            if (mInterestingNativePidsRefreshPending) {
+                Slogf.w(TAG, "Interesting native pids are being looked up, not dumping them");
+                return new ArrayList<>();
+            }
+            mInterestingNativePidsRefreshPending = true;
+        }
+        return refreshInterestingNativePids();
+    }
+
+    private ArrayList<Integer> refreshInterestingNativePids() {
+        ArrayList<Integer> pids = getInterestingNativePids();
+        synchronized (mLock) {
+            mInterestingNativePids = pids;
+            mInterestingNativePidsUptimeMs = SystemClock.uptimeMillis();
+            mInterestingNativePidsRefreshPending = false;
+        }
+        return new ArrayList<>(pids);
+    }
+
     // Borrowed from Watchdog.java.  Create an ANR file from the call stacks.
     //
-    private static void dumpServiceStacks() {
+    private void dumpServiceStacks() {
         ArrayList<Integer> pids = new ArrayList<>();
         pids.add(Process.myPid());
 
         ActivityManagerService.dumpStackTraces(
-                pids, null, null, getInterestingNativePids(), null);
+                pids, null, null, getCachedInterestingNativePids(), null);
     }
 
     @VisibleForTesting
@@ -584,8 +712,18 @@ public class CarServiceHelperService extends SystemService
         }
     }
 
-    private void handleClientsNotResponding(@NonNull int[] pids) {
-        mProcessTerminator.requestTerminateProcess(pids);
+    @VisibleForTesting
+    void handleClientsNotResponding(@NonNull int[] pids) {
+        handleClientsNotResponding(pids, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Terminates the given unresponsive clients, reported by the car watchdog daemon at
+     * {@code requestUptimeMs}, which is when their {@link #TERMINATION_BUDGET_MS} starts.
+     */
+    @VisibleForTesting
+    void handleClientsNotResponding(@NonNull int[] pids, long requestUptimeMs) {
+        mProcessTerminator.requestTerminateProcess(pids, requestUptimeMs);
     }
 
     private void registerMonitorToWatchdogDaemon() {
@@ -603,10 +741,7 @@ public class CarServiceHelperService extends SystemService
         }
     }
 
-    private void killProcessAndReportToMonitor(int pid) {
-        String processName = getProcessName(pid);
-        Process.killProcess(pid);
-        Slogf.w(TAG, "carwatchdog killed %s (pid: %d)", processName, pid);
+    private void reportDumpFinishedToMonitor(int pid) {
         try {
             mCarWatchdogDaemonHelper.tellDumpFinished(mCarWatchdogMonitor, pid);
         } catch (RemoteException | RuntimeException e) {
@@ -614,22 +749,6 @@ public class CarServiceHelperService extends SystemService
         }
     }
 
-    private static String getProcessName(int pid) {
-        String unknownProcessName = "unknown process";
-        String filename = "/proc/" + pid + "/cmdline";
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line = reader.readLine().replace('\0', ' ').trim();
-            int index = line.indexOf(' ');
-            if (index != -1) {
-                line = line.substring(0, index);
-            }
-            return Paths.get(line).getFileName().toString();
-        } catch (IOException e) {
-            Slogf.w(TAG, "Cannot read %s", filename);
-            return unknownProcessName;
-        }
-    }
-
     private static native int nativeForceSuspend(int timeoutMs);
 
     // TODO(b/173664653): it's missing unit tests (for example, to make sure that
@@ -642,6 +761,7 @@ public class CarServiceHelperService extends SystemService
         public int forceSuspend(int timeoutMs) {
             int retVal;
             mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DEVICE_POWER, null);
+            waitForNativeLibrary();
             final long ident = Binder.clearCallingIdentity();
             try {
                 retVal = nativeForceSuspend(timeoutMs);
@@ -727,78 +847,224 @@ public class CarServiceHelperService extends SystemService
         private static final long ONE_SECOND_MS = 1_000L;
 
         private final Object mProcessLock = new Object();
-        private ExecutorService mExecutor;
+        // Only used by the worker thread
+        private final ProcfsReader mProcfsReader;
+        @GuardedBy("mProcessLock")
+        private Handler mWorkerHandler;
+        @GuardedBy("mProcessLock")
+        private final IntArray mPendingPids = new IntArray();
+        // When each of mPendingPids was reported, as merged requests have different latencies
+        @GuardedBy("mProcessLock")
+        private final LongArray mPendingRequestUptimesMs = new LongArray();
+        // Earliest deadline of the pending requests
+        @GuardedBy("mProcessLock")
+        private long mPendingDeadlineUptimeMs;
+        @GuardedBy("mProcessLock")
+        private boolean mDrainScheduled;
+        // Pids accepted past MAX_DUMPED_PIDS
+        @GuardedBy("mProcessLock")
+        private int mUndumpedPids;
+        // Pids from when they're accepted until they're killed (or found to be gone already), so
+        // that a hung client reported again isn't dumped and killed twice. The value is whether
+        // tellDumpFinished() was sent for it already.
+        @GuardedBy("mProcessLock")
+        private final SparseBooleanArray mInFlightPids = new SparseBooleanArray();
         @GuardedBy("mProcessLock")
-        private int mQueuedTask;
+        private int mFoldedPids;
+        private final TerminationMetrics mMetrics = new TerminationMetrics();
 
-        public void requestTerminateProcess(@NonNull int[] pids) {
+        ProcessTerminator(@NonNull ProcfsReader procfsReader) {
+            mProcfsReader = procfsReader;
+        }
+
+        public void requestTerminateProcess(@NonNull int[] pids, long requestUptimeMs) {
+            IntArray reportedPids = null;
             synchronized (mProcessLock) {
-                // If there is a running thread, we re-use it instead of starting a new thread.
-                if (mExecutor == null) {
-                    mExecutor = Executors.newSingleThreadExecutor();
+                long deadlineUptimeMs = requestUptimeMs + TERMINATION_BUDGET_MS;
+                if (mPendingPids.size() == 0 || deadlineUptimeMs < mPendingDeadlineUptimeMs) {
+                    mPendingDeadlineUptimeMs = deadlineUptimeMs;
                 }
-                mQueuedTask++;
-            }
-            mExecutor.execute(() -> {
                 for (int pid : pids) {
-                    dumpAndKillProcess(pid);
+                    int index = mInFlightPids.indexOfKey(pid);
+                    if (index >= 0) {
+                        mFoldedPids++;
+                        // Otherwise, the operation handling it will report it to the daemon
+                        if (mInFlightPids.valueAt(index)) {
+                            if (reportedPids == null) {
+                                reportedPids = new IntArray(pids.length);
+                            }
+                            reportedPids.add(pid);
+                        }
+                        continue;
+                    }
+                    if (mPendingPids.size() >= MAX_DUMPED_PIDS) {
+                        mUndumpedPids++;
+                        Slogf.w(TAG, "Too many unresponsive clients pending, pid %d will be killed"
+                                + " without being dumped", pid);
+                    }
+                    mPendingPids.add(pid);
+                    mPendingRequestUptimesMs.add(requestUptimeMs);
+                    mInFlightPids.put(pid, false);
                 }
-                // mExecutor will be stopped from the main thread, if there is no queued task.
-                mHandler.sendMessage(obtainMessage(ProcessTerminator::postProcessing, this)
-                        .setWhat(WHAT_POST_PROCESS_DUMPING));
-            });
+                if (!mDrainScheduled && mPendingPids.size() > 0) {
+                    mDrainScheduled = true;
+                    getWorkerHandlerLocked().post(this::drainPendingPids);
+                }
+            }
+            // Dumped already, but not killed yet
+            for (int i = 0; reportedPids != null && i < reportedPids.size(); i++) {
+                reportDumpFinishedToMonitor(reportedPids.get(i));
+            }
         }
 
-        private void postProcessing() {
+        /**
+         * Gets the handler of the worker thread, which is started on the first request and then
+         * kept (parked on its looper) for the lifetime of the system server.
+         */
+        @GuardedBy("mProcessLock")
+        private Handler getWorkerHandlerLocked() {
+            if (mWorkerHandler == null) {
+                HandlerThread thread = new HandlerThread(TAG + ".ProcessTerminator",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                mWorkerHandler = new Handler(thread.getLooper());
+            }
+            return mWorkerHandler;
+        }
+
+        private void drainPendingPids() {
+            int[] pids;
+            long[] requestUptimesMs;
+            long deadlineUptimeMs;
             synchronized (mProcessLock) {
-                mQueuedTask--;
-                if (mQueuedTask == 0) {
-                    mExecutor.shutdown();
-                    mExecutor = null;
-                }
+                pids = mPendingPids.toArray();
+                requestUptimesMs = mPendingRequestUptimesMs.toArray();
+                deadlineUptimeMs = mPendingDeadlineUptimeMs;
+                mPendingPids.clear();
+                mPendingRequestUptimesMs.clear();
+                mDrainScheduled = false;
+            }
+            if (pids.length > 0) {
+                dumpAndKillProcesses(pids, requestUptimesMs, deadlineUptimeMs);
             }
         }
 
-        private void dumpAndKillProcess(int pid) {
+        private void killProcess(int pid, @NonNull String processName) {
+            Process.killProcess(pid);
+            Slogf.w(TAG, "carwatchdog killed %s (pid: %d)", processName, pid);
+            onProcessHandled(pid);
+        }
+
+        private void onProcessHandled(int pid) {
+            synchronized (mProcessLock) {
+                mInFlightPids.delete(pid);
+            }
+        }
+
+        private void dump(@NonNull IndentingPrintWriter pw) {
+            synchronized (mProcessLock) {
+                pw.printf("Pending unresponsive pids: %d (not dumped: %d)\n",
+                        mPendingPids.size(), mUndumpedPids);
+                pw.printf("In-flight unresponsive pids: %d (folded: %d)\n", mInFlightPids.size(),
+                        mFoldedPids);
+            }
+        }
+
+        private void dumpMetrics(@NonNull IndentingPrintWriter pw) {
+            mMetrics.dump(pw, SystemClock.uptimeMillis());
+        }
+
+        /**
+         * Dumps the stack traces of all the given processes (and of the interesting native
+         * processes) at once, then kills them. Only the first {@link #MAX_DUMPED_PIDS} processes
+         * are dumped, the others are just killed.
+         *
+         * <p>Whatever has to be dropped to meet {@code deadlineUptimeMs} goes first: the stacks of
+         * the interesting native processes, then the dump itself, then the grace period before
+         * the kill. The daemon is told that the dump finished as soon as it does, without waiting
+         * for the kill.
+         *
+         * @param requestUptimesMs when each of the {@code pids} was reported by the daemon
+         */
+        private void dumpAndKillProcesses(@NonNull int[] pids, @NonNull long[] requestUptimesMs,
+                long deadlineUptimeMs) {
             if (DBG) {
-                Slogf.d(TAG, "Dumping and killing process(pid: %d)", pid);
+                Slogf.d(TAG, "Dumping and killing processes(pids: %s)", Arrays.toString(pids));
             }
-            ArrayList<Integer> javaPids = new ArrayList<>(1);
+            ArrayList<ProcfsReader.ProcessInfo> processes = new ArrayList<>(pids.length);
+            LongArray processRequestUptimesMs = new LongArray(pids.length);
+            ArrayList<Integer> javaPids = new ArrayList<>(pids.length);
             ArrayList<Integer> nativePids = new ArrayList<>();
-            try {
-                if (isJavaApp(pid)) {
-                    javaPids.add(pid);
-                } else {
-                    nativePids.add(pid);
+            // The first ones of processes
+            int dumpableProcesses = 0;
+            for (int i = 0; i < pids.length; i++) {
+                int pid = pids[i];
+                ProcfsReader.ProcessInfo info;
+                try {
+                    info = mProcfsReader.readProcessInfo(pid);
+                } catch (IOException e) {
+                    Slogf.w(TAG, "Cannot get process information of pid %d: %s", pid, e);
+                    onProcessHandled(pid);
+                    continue;
                 }
-            } catch (IOException e) {
-                Slogf.w(TAG, "Cannot get process information: %s", e);
+                if (i < MAX_DUMPED_PIDS) {
+                    if (info.isJavaApp) {
+                        javaPids.add(pid);
+                    } else {
+                        nativePids.add(pid);
+                    }
+                    dumpableProcesses++;
+                }
+                processes.add(info);
+                processRequestUptimesMs.add(requestUptimesMs[i]);
+            }
+            if (processes.isEmpty()) {
                 return;
             }
-            nativePids.addAll(getInterestingNativePids());
-            long startDumpTime = SystemClock.uptimeMillis();
-            ActivityManagerService.dumpStackTraces(javaPids, null, null, nativePids, null);
-            long dumpTime = SystemClock.uptimeMillis() - startDumpTime;
-            if (DBG) {
-                Slogf.d(TAG, "Dumping process took %dms", dumpTime);
+            long remainingMs = deadlineUptimeMs - SystemClock.uptimeMillis();
+            long dumpTime = 0;
+            boolean dumped = remainingMs >= DUMP_MIN_BUDGET_MS && dumpableProcesses > 0;
+            if (dumped) {
+                if (remainingMs >= FULL_DUMP_MIN_BUDGET_MS) {
+                    nativePids.addAll(getCachedInterestingNativePids());
+                }
+                long startDumpTime = SystemClock.uptimeMillis();
+                ActivityManagerService.dumpStackTraces(javaPids, null, null, nativePids, null);
+                dumpTime = SystemClock.uptimeMillis() - startDumpTime;
+                if (DBG) {
+                    Slogf.d(TAG, "Dumping %d processes took %dms", dumpableProcesses, dumpTime);
+                }
+            } else if (dumpableProcesses > 0) {
+                Slogf.w(TAG, "Not dumping processes(pids: %s) as only %dms are left to kill them",
+                        Arrays.toString(pids), remainingMs);
             }
-            // To give clients a chance of wrapping up before the termination.
-            if (dumpTime < ONE_SECOND_MS) {
-                mHandler.sendMessageDelayed(obtainMessage(
-                        CarServiceHelperService::killProcessAndReportToMonitor,
-                        CarServiceHelperService.this, pid).setWhat(WHAT_PROCESS_KILL),
-                        ONE_SECOND_MS - dumpTime);
-            } else {
-                killProcessAndReportToMonitor(pid);
+            for (int i = 0; i < processes.size(); i++) {
+                int pid = processes.get(i).pid;
+                // Marked first, so a report of the pid from now on is answered right away
+                synchronized (mProcessLock) {
+                    mInFlightPids.put(pid, true);
+                }
+                reportDumpFinishedToMonitor(pid);
+            }
+            long reportedUptimeMs = SystemClock.uptimeMillis();
+            // To give clients a chance of wrapping up before the termination, without missing
+            // the deadline.
+            long killDelayMs = Math.min(ONE_SECOND_MS - dumpTime,
+                    deadlineUptimeMs - reportedUptimeMs);
+            for (int i = 0; i < processes.size(); i++) {
+                ProcfsReader.ProcessInfo info = processes.get(i);
+                long requestUptimeMs = processRequestUptimesMs.get(i);
+                mMetrics.onProcessTerminated(reportedUptimeMs, info.pid, info.name,
+                        info.isJavaApp, dumped && i < dumpableProcesses ? dumpTime : -1,
+                        Math.max(killDelayMs, 0), reportedUptimeMs - requestUptimeMs,
+                        reportedUptimeMs > requestUptimeMs + TERMINATION_BUDGET_MS);
+                if (killDelayMs > 0) {
+                    mHandler.sendMessageDelayed(obtainMessage(ProcessTerminator::killProcess, this,
+                            info.pid, info.name).setWhat(WHAT_PROCESS_KILL), killDelayMs);
+                } else {
+                    killProcess(info.pid, info.name);
+                }
             }
-        }
-
-        private boolean isJavaApp(int pid) throws IOException {
-            Path exePath = new File("/proc/" + pid + "/exe").toPath();
-            String target = Files.readSymbolicLink(exePath).toString();
-            // Zygote's target exe is also /system/bin/app_process32 or /system/bin/app_process64.
-            // But, we can be very sure that Zygote will not be the client of car watchdog daemon.
-            return target == "/system/bin/app_process32" || target == "/system/bin/app_process64";
         }
     }
 
@@ -28,26 +28,33 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.UserIdInt;
 import android.content.pm.UserInfo;
+import android.os.Handler;
+import android.os.HandlerExecutor;
+import android.os.HandlerThread;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.util.DebugUtils;
 import android.util.IndentingPrintWriter;
 import android.util.Slog;
-import android.util.SparseArray;
 import android.util.SparseIntArray;
+import android.util.SparseLongArray;
 
 import com.android.car.internal.ICarSystemServerClient;
 import com.android.car.internal.common.CommonConstants.UserLifecycleEventType;
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.IResultReceiver;
-import com.android.internal.util.Preconditions;
 import com.android.server.SystemService.TargetUser;
 import com.android.server.utils.TimingsTraceAndSlog;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
 
 /**
  * Manages CarService operations requested by CarServiceHelperService.
@@ -62,17 +69,27 @@ final class CarServiceProxy {
     /*
      * The logic of re-queue:
      *
-     * There are two sparse array - mLastUserLifecycle and mPendingOperations
+     * There are two kinds of state - mLastUserLifecycle and the pending operations
      *
      * First sparse array - mLastUserLifecycle - is to keep track of the life-cycle events for each
      * user. It would have the last life-cycle event of each running user (typically user 0 and the
      * current user). All life-cycle events seen so far would be replayed on connection and
      * reconnection.
      *
-     * Second sparse array - mPendingOperations - would keep all the non-life-cycle events related
-     * operations, which are represented by PendintOperation and PendingOperationId.
-     * Most operations (like initBootUser and preCreateUsers) just need to be sent only, but some
-     * need to be queued (like onUserRemoved).
+     * The pending operations - one field per PendingOperationId - keep all the non-life-cycle
+     * events related operations: mInitBootUserPending, mPendingRemovedUsers and
+     * mFactoryResetCallback.
+     * Most operations (like initBootUser) just need to be sent only, but some need to be queued
+     * (like onUserRemoved, in a bounded ring) or kept after being sent (like onFactoryReset).
+     *
+     * Nothing is sent on the thread reporting it, nor while holding mLock: life-cycle events and
+     * pending operations are added to the same FIFO - mPendingCalls - in the order they're
+     * reported, and delivered by mDispatcherExecutor, which runs one task at a time. An operation
+     * entry only tells when to send it; what to send is still taken from its field when the
+     * dispatcher gets to it. On connection, the queue is rebuilt with the pending operations first,
+     * then the replayed life-cycle events. The dispatcher takes a snapshot of what to send under
+     * the lock, and mConnectionEpoch tells if CarService crashed or reconnected while it was
+     * sending.
      */
 
     // Operation ID for each non life-cycle event calls
@@ -94,10 +111,17 @@ final class CarServiceProxy {
 
     private static final long LIFECYCLE_TIMESTAMP_IGNORE = 0;
 
+    // Removed users kept while CarService is not connected; older ones are dropped when full
+    @VisibleForTesting
+    static final int MAX_PENDING_REMOVED_USERS = 32;
+
     private final Object mLock = new Object();
 
     @GuardedBy("mLock")
     private boolean mCarServiceCrashed;
+    // Incremented on every connection and crash of CarService
+    @GuardedBy("mLock")
+    private int mConnectionEpoch;
     @UserIdInt
     @GuardedBy("mLock")
     private int mLastSwitchedUser = UserHandle.USER_NULL;
@@ -107,19 +131,80 @@ final class CarServiceProxy {
     // Key: user id, value: life-cycle
     @GuardedBy("mLock")
     private final SparseIntArray mLastUserLifecycle = new SparseIntArray();
-    // Key: @PendingOperationId, value: PendingOperation
+    // PO_INIT_BOOT_USER
+    @GuardedBy("mLock")
+    private boolean mInitBootUserPending;
+    // Number of initBootUser() calls, so a call made while the previous one is being sent isn't
+    // cleared by it
+    @GuardedBy("mLock")
+    private int mInitBootUserRequests;
+    // PO_ON_USER_REMOVED
+    @GuardedBy("mLock")
+    private final RemovedUsersQueue mPendingRemovedUsers =
+            new RemovedUsersQueue(MAX_PENDING_REMOVED_USERS);
+    // PO_ON_FACTORY_RESET; not cleared when sent
+    @GuardedBy("mLock")
+    @Nullable
+    private IResultReceiver mFactoryResetCallback;
+    // Whether mFactoryResetCallback was sent to the current connection
     @GuardedBy("mLock")
-    private final SparseArray<PendingOperation> mPendingOperations = new SparseArray<>();
+    private boolean mFactoryResetCallbackSent;
 
     @GuardedBy("mLock")
     private ICarSystemServerClient mCarService;
     @GuardedBy("mLock")
     private UserHandle mInitialUser;
+    // Life-cycle events and pending operations not delivered to mCarService yet, in order
+    @GuardedBy("mLock")
+    private final ArrayDeque<PendingCall> mPendingCalls = new ArrayDeque<>();
+    @GuardedBy("mLock")
+    private boolean mDispatchScheduled;
+    // Number of life-cycle events dropped by coalesceStoppedUserLocked()
+    @GuardedBy("mLock")
+    private int mCoalescedLifecycleEvents;
+    // When the CarService binder was connected, or 0 if it wasn't or it was handled already
+    @GuardedBy("mLock")
+    private long mBinderConnectedUptimeMs;
+    @GuardedBy("mLock")
+    private final ReconnectionMetrics mReconnectionMetrics = new ReconnectionMetrics();
+    private final Executor mDispatcherExecutor;
+    // Calls taken from mPendingCalls and being sent; only used by the dispatcher task
+    private final ArrayList<PendingCall> mBatch = new ArrayList<>();
     private final CarServiceHelperService mCarServiceHelperService;
     private final UserMetrics mUserMetrics = new UserMetrics();
 
     CarServiceProxy(CarServiceHelperService carServiceHelperService) {
+        this(carServiceHelperService, newDispatcherExecutor());
+    }
+
+    /**
+     * Creates the proxy.
+     *
+     * @param dispatcherExecutor executor making the calls to CarService; it must run its tasks one
+     * at a time, in order.
+     */
+    @VisibleForTesting
+    CarServiceProxy(CarServiceHelperService carServiceHelperService,
+            Executor dispatcherExecutor) {
         mCarServiceHelperService = carServiceHelperService;
+        mDispatcherExecutor = dispatcherExecutor;
+    }
+
+    private static Executor newDispatcherExecutor() {
+        HandlerThread thread = new HandlerThread(TAG + ".Dispatcher");
+        thread.start();
+        return new HandlerExecutor(new Handler(thread.getLooper()));
+    }
+
+    /**
+     * Called when the CarService binder is connected, before CarService is given the system server
+     * connections, to measure how long it takes until {@link #handleCarServiceConnection} is
+     * called.
+     */
+    void onCarServiceBinderConnected() {
+        synchronized (mLock) {
+            mBinderConnectedUptimeMs = SystemClock.uptimeMillis();
+        }
     }
 
     /**
@@ -130,14 +215,30 @@ final class CarServiceProxy {
         TimingsTraceAndSlog t = newTimingsTraceAndSlog();
         t.traceBegin("handleCarServiceConnection");
         synchronized (mLock) {
+            int pendingRemovedUsers = mPendingRemovedUsers.size();
+            boolean pendingFactoryReset = mFactoryResetCallback != null;
             mCarService = carService;
             mCarServiceCrashed = false;
-            runQueuedOperationLocked(PO_INIT_BOOT_USER);
-            runQueuedOperationLocked(PO_ON_USER_REMOVED);
-            runQueuedOperationLocked(PO_ON_FACTORY_RESET);
+            mConnectionEpoch++;
+            // The factory reset callback is sent again to the new connection
+            mFactoryResetCallbackSent = false;
+            // Calls queued for the previous connection are replayed from the pending operations
+            // (sent first) and mLastUserLifecycle
+            mPendingCalls.clear();
+            queuePendingOperationsLocked();
+            int operations = mPendingCalls.size();
+            queueLifeCycleEventsLocked();
+            int lifecycleEvents = mPendingCalls.size() - operations;
+            Slog.i(TAG, "Replaying " + lifecycleEvents + " lifecycle events of "
+                    + mLastUserLifecycle.size() + " users");
+            mReconnectionMetrics.onConnected(mConnectionEpoch, SystemClock.uptimeMillis(),
+                    mBinderConnectedUptimeMs, mInitBootUserPending, pendingRemovedUsers,
+                    pendingFactoryReset, lifecycleEvents, mLastUserLifecycle.size());
+            mBinderConnectedUptimeMs = 0;
         }
-        sendLifeCycleEvents();
-        sendInitialUser();
+        scheduleDispatch();
+        // Posted after the replay, so CarService gets it after the life-cycle events
+        mDispatcherExecutor.execute(this::sendInitialUser);
         t.traceEnd();
     }
 
@@ -169,32 +270,36 @@ final class CarServiceProxy {
     }
 
     @GuardedBy("mLock")
-    private void runQueuedOperationLocked(@PendingOperationId int operationId) {
-        PendingOperation pendingOperation = mPendingOperations.get(operationId);
-        if (pendingOperation != null) {
-            runLocked(operationId, pendingOperation.value);
-            return;
+    private boolean hasUnsentOperationsLocked() {
+        return mInitBootUserPending || mPendingRemovedUsers.size() > 0
+                || (mFactoryResetCallback != null && !mFactoryResetCallbackSent);
+    }
+
+    @GuardedBy("mLock")
+    private void queuePendingOperationsLocked() {
+        if (mInitBootUserPending) {
+            queueOperationLocked(PO_INIT_BOOT_USER);
         }
-        if (DBG) {
-            Slog.d(TAG, "No queued operation of type " + pendingOperationToString(operationId));
+        for (int i = 0; i < mPendingRemovedUsers.size(); i++) {
+            queueOperationLocked(PO_ON_USER_REMOVED);
+        }
+        if (mFactoryResetCallback != null) {
+            queueOperationLocked(PO_ON_FACTORY_RESET);
         }
     }
 
-    private void sendLifeCycleEvents() {
-        int lastSwitchedUser;
-        SparseIntArray lastUserLifecycle;
-
-        synchronized (mLock) {
-            lastSwitchedUser = mLastSwitchedUser;
-            lastUserLifecycle = mLastUserLifecycle.clone();
-        }
+    @GuardedBy("mLock")
+    private void queueLifeCycleEventsLocked() {
+        int lastSwitchedUser = mLastSwitchedUser;
+        SparseIntArray lastUserLifecycle = mLastUserLifecycle.clone();
 
         // Send user0 events first
         int user0Lifecycle = lastUserLifecycle.get(UserHandle.USER_SYSTEM);
         boolean user0IsCurrent = lastSwitchedUser == UserHandle.USER_SYSTEM;
         // If user0Lifecycle is 0, then no life-cycle event received yet.
         if (user0Lifecycle != 0) {
-            sendAllLifecyleToUser(UserHandle.USER_SYSTEM, user0Lifecycle, user0IsCurrent);
+            queueAllLifecyleToUserLocked(UserHandle.USER_SYSTEM, user0Lifecycle,
+                    user0IsCurrent);
         }
         lastUserLifecycle.delete(UserHandle.USER_SYSTEM);
 
@@ -203,7 +308,7 @@ final class CarServiceProxy {
             int currentUserLifecycle = lastUserLifecycle.get(lastSwitchedUser);
             // If currentUserLifecycle is 0, then no life-cycle event received yet.
             if (currentUserLifecycle != 0) {
-                sendAllLifecyleToUser(lastSwitchedUser, currentUserLifecycle,
+                queueAllLifecyleToUserLocked(lastSwitchedUser, currentUserLifecycle,
                         /* isCurrentUser= */ true);
             }
         }
@@ -214,34 +319,34 @@ final class CarServiceProxy {
         for (int i = 0; i < lastUserLifecycle.size(); i++) {
             int userId = lastUserLifecycle.keyAt(i);
             int lifecycle = lastUserLifecycle.valueAt(i);
-            sendAllLifecyleToUser(userId, lifecycle, /* isCurrentUser= */ false);
+            queueAllLifecyleToUserLocked(userId, lifecycle, /* isCurrentUser= */ false);
         }
     }
 
-    private void sendAllLifecyleToUser(@UserIdInt int userId, int lifecycle,
+    @GuardedBy("mLock")
+    private void queueAllLifecyleToUserLocked(@UserIdInt int userId, int lifecycle,
             boolean isCurrentUser) {
         if (DBG) {
-            Slog.d(TAG, "sendAllLifecyleToUser, user:" + userId + " lifecycle:" + lifecycle);
+            Slog.d(TAG, "queueAllLifecyleToUserLocked, user:" + userId + " lifecycle:"
+                    + lifecycle);
         }
         if (lifecycle >= USER_LIFECYCLE_EVENT_TYPE_STARTING) {
-            sendUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STARTING, UserHandle.USER_NULL,
+            replayLifecycleEventLocked(USER_LIFECYCLE_EVENT_TYPE_STARTING, UserHandle.USER_NULL,
                     userId);
         }
 
         if (isCurrentUser && userId != UserHandle.USER_SYSTEM) {
-            synchronized (mLock) {
-                sendUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_SWITCHING,
-                        mPreviousUserOfLastSwitchedUser, userId);
-            }
+            replayLifecycleEventLocked(USER_LIFECYCLE_EVENT_TYPE_SWITCHING,
+                    mPreviousUserOfLastSwitchedUser, userId);
         }
 
         if (lifecycle >= USER_LIFECYCLE_EVENT_TYPE_UNLOCKING) {
-            sendUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_UNLOCKING, UserHandle.USER_NULL,
+            replayLifecycleEventLocked(USER_LIFECYCLE_EVENT_TYPE_UNLOCKING, UserHandle.USER_NULL,
                     userId);
         }
 
         if (lifecycle >= USER_LIFECYCLE_EVENT_TYPE_UNLOCKED) {
-            sendUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_UNLOCKED, UserHandle.USER_NULL,
+            replayLifecycleEventLocked(USER_LIFECYCLE_EVENT_TYPE_UNLOCKED, UserHandle.USER_NULL,
                     userId);
         }
     }
@@ -252,7 +357,12 @@ final class CarServiceProxy {
     void initBootUser() {
         if (DBG) Slog.d(TAG, "initBootUser()");
 
-        saveOrRun(PO_INIT_BOOT_USER);
+        synchronized (mLock) {
+            mInitBootUserPending = true;
+            mInitBootUserRequests++;
+            queueOperationIfConnectedLocked(PO_INIT_BOOT_USER);
+        }
+        scheduleDispatch();
     }
 
     // TODO(b/173664653): add unit test
@@ -262,7 +372,15 @@ final class CarServiceProxy {
     void onUserRemoved(@NonNull UserInfo user) {
         if (DBG) Slog.d(TAG, "onUserRemoved(): " + user.toFullString());
 
-        saveOrRun(PO_ON_USER_REMOVED, user);
+        synchronized (mLock) {
+            UserInfo dropped = mPendingRemovedUsers.add(user);
+            if (dropped != null) {
+                Slog.w(TAG, "Too many pending onUserRemoved() calls, dropping the one of user "
+                        + dropped.id);
+            }
+            queueOperationIfConnectedLocked(PO_ON_USER_REMOVED);
+        }
+        scheduleDispatch();
     }
 
     // TODO(b/173664653): add unit test
@@ -272,135 +390,112 @@ final class CarServiceProxy {
     void onFactoryReset(@NonNull IResultReceiver callback) {
         if (DBG) Slog.d(TAG, "onFactoryReset(): " + callback);
 
-        saveOrRun(PO_ON_FACTORY_RESET, callback);
-    }
-
-    private void saveOrRun(@PendingOperationId int operationId) {
-        saveOrRun(operationId, /* value= */ null);
-    }
-
-    private void saveOrRun(@PendingOperationId int operationId, @Nullable Object value) {
         synchronized (mLock) {
-            if (mCarService == null) {
-                if (DBG) {
-                    Slog.d(TAG, "CarService null. Operation "
-                            + pendingOperationToString(operationId)
-                            + (value == null ? "" : "(" + value + ")") + " deferred.");
-                }
-                savePendingOperationLocked(operationId, value);
-                return;
+            // Must always persist it, so it's sent again if CarService is crashed before the next
+            // reboot or suspension-to-ram
+            if (DBG && mFactoryResetCallback != null) {
+                Slog.d(TAG, "Replacing " + mFactoryResetCallback + " by " + callback);
             }
-            if (operationId == PO_ON_FACTORY_RESET) {
-                // Must always persist it, so it's sent again if CarService is crashed before
-                // the next reboot or suspension-to-ram
-                savePendingOperationLocked(operationId, value);
-            }
-            runLocked(operationId, value);
+            mFactoryResetCallback = callback;
+            mFactoryResetCallbackSent = false;
+            queueOperationIfConnectedLocked(PO_ON_FACTORY_RESET);
         }
+        scheduleDispatch();
     }
 
+    /**
+     * Resolves what the pending operations taken by the dispatcher must send, from their fields.
+     *
+     * <p>There can be more {@link #PO_ON_USER_REMOVED} entries than pending users (if the oldest
+     * ones were dropped), and more {@link #PO_INIT_BOOT_USER} or {@link #PO_ON_FACTORY_RESET}
+     * entries than needed (if they were requested again before being sent); the extra ones don't
+     * send anything.
+     */
     @GuardedBy("mLock")
-    private void runLocked(@PendingOperationId int operationId, @Nullable Object value) {
-        if (DBG) Slog.d(TAG, "runLocked(): " + pendingOperationToString(operationId) + "/" + value);
-        try {
-            if (isServiceCrashedLoggedLocked(operationId)) {
-                return;
+    private void resolveOperationsLocked() {
+        boolean initBootUser = mInitBootUserPending;
+        int removedUsers = 0;
+        IResultReceiver factoryResetCallback =
+                mFactoryResetCallbackSent ? null : mFactoryResetCallback;
+        for (int i = 0; i < mBatch.size(); i++) {
+            if (!(mBatch.get(i) instanceof PendingOperation)) {
+                continue;
             }
-            sendCarServiceActionLocked(operationId, value);
-            if (operationId == PO_ON_FACTORY_RESET) {
-                if (DBG) Slog.d(TAG, "NOT removing " + pendingOperationToString(operationId));
-                return;
+            PendingOperation operation = (PendingOperation) mBatch.get(i);
+            switch (operation.operationId) {
+                case PO_INIT_BOOT_USER:
+                    operation.send = initBootUser;
+                    operation.initBootUserRequests = mInitBootUserRequests;
+                    initBootUser = false;
+                    break;
+                case PO_ON_USER_REMOVED:
+                    operation.user = removedUsers < mPendingRemovedUsers.size()
+                            ? mPendingRemovedUsers.get(removedUsers++) : null;
+                    operation.send = operation.user != null;
+                    break;
+                case PO_ON_FACTORY_RESET:
+                    operation.factoryResetCallback = factoryResetCallback;
+                    operation.send = factoryResetCallback != null;
+                    factoryResetCallback = null;
+                    break;
+                default:
+                    Slog.wtf(TAG, "Invalid operation: " + operation.operationId);
             }
-            if (DBG) Slog.d(TAG, "removing " + pendingOperationToString(operationId));
-            mPendingOperations.delete(operationId);
-        } catch (RemoteException e) {
-            Slog.w(TAG, "RemoteException from car service", e);
-            handleCarServiceCrash();
         }
     }
 
-    @GuardedBy("mLock")
-    private void savePendingOperationLocked(@PendingOperationId int operationId,
-            @Nullable Object value) {
-        PendingOperation pendingOperation = mPendingOperations.get(operationId);
-
-        if (pendingOperation == null) {
-            pendingOperation = new PendingOperation(operationId, value);
-            if (DBG) Slog.d(TAG, "Created " + pendingOperation);
-            mPendingOperations.put(operationId, pendingOperation);
+    /**
+     * Sends a pending operation to CarService, without holding {@link #mLock}.
+     *
+     * <p>What was sent is removed (except for the factory reset callback, which is only marked as
+     * sent) if CarService didn't crash or reconnect in between, so what's left is sent again on
+     * reconnection.
+     */
+    private void sendOperation(ICarSystemServerClient carService, int epoch,
+            PendingOperation operation) throws RemoteException {
+        if (!operation.send) {
             return;
         }
-        switch (operationId) {
-            case PO_ON_USER_REMOVED:
-                Preconditions.checkArgument((value instanceof UserInfo),
-                        "invalid value passed to ON_USER_REMOVED", value);
-                if (pendingOperation.value instanceof ArrayList) {
-                    if (DBG) Slog.d(TAG, "Adding " + value + " to existing " + pendingOperation);
-                    ((ArrayList) pendingOperation.value).add(value);
-                } else if (pendingOperation.value instanceof UserInfo) {
-                    ArrayList<Object> list = new ArrayList<>(2);
-                    list.add(pendingOperation.value);
-                    list.add(value);
-                    if (DBG) Slog.d(TAG, "Converting " + pendingOperation.value + " to " + list);
-                    pendingOperation.value = list;
-                } else {
-                    throw new IllegalStateException("Invalid value for ON_USER_REMOVED: " + value);
-                }
-                break;
-            case PO_ON_FACTORY_RESET:
-                PendingOperation newOperation = new PendingOperation(operationId, value);
-                if (DBG) Slog.d(TAG, "Replacing " + pendingOperation + " by " + newOperation);
-                mPendingOperations.put(operationId, newOperation);
-                break;
-            default:
-                if (DBG) {
-                    Slog.d(TAG, "Already saved operation of type "
-                            + pendingOperationToString(operationId));
-                }
-        }
-    }
-
-    @GuardedBy("mLock")
-    private void sendCarServiceActionLocked(@PendingOperationId int operationId,
-            @Nullable Object value) throws RemoteException {
-        if (DBG) {
-            Slog.d(TAG, "sendCarServiceActionLocked: Operation "
-                    + pendingOperationToString(operationId));
-        }
-        switch (operationId) {
+        if (DBG) Slog.d(TAG, "Sending " + pendingOperationToString(operation.operationId));
+        long startMs = SystemClock.uptimeMillis();
+        switch (operation.operationId) {
             case PO_INIT_BOOT_USER:
-                mCarService.initBootUser();
+                carService.initBootUser();
                 break;
             case PO_ON_USER_REMOVED:
-                if (value instanceof ArrayList) {
-                    ArrayList<Object> list = (ArrayList<Object>) value;
-                    if (DBG) Slog.d(TAG, "Sending " + list.size() + " onUserRemoved() calls");
-                    for (Object user: list) {
-                        onUserRemovedLocked(user);
-                    }
-                } else {
-                    onUserRemovedLocked(value);
-                }
+                carService.onUserRemoved(operation.user);
                 break;
             case PO_ON_FACTORY_RESET:
-                mCarService.onFactoryReset((IResultReceiver) value);
+                carService.onFactoryReset(operation.factoryResetCallback);
                 break;
-            default:
-                Slog.wtf(TAG, "Invalid Operation. OperationId -" + operationId);
         }
-    }
-
-    @GuardedBy("mLock")
-    private void onUserRemovedLocked(@NonNull Object value) throws RemoteException {
-        Preconditions.checkArgument((value instanceof UserInfo),
-                "Invalid value for ON_USER_REMOVED: %s", value);
-        UserInfo user = (UserInfo) value;
-        if (DBG) Slog.d(TAG, "Sending onUserRemoved(): " + user.toFullString());
-        mCarService.onUserRemoved(user);
+        long durationMs = SystemClock.uptimeMillis() - startMs;
+        synchronized (mLock) {
+            if (epoch == mConnectionEpoch) {
+                switch (operation.operationId) {
+                    case PO_INIT_BOOT_USER:
+                        if (operation.initBootUserRequests == mInitBootUserRequests) {
+                            mInitBootUserPending = false;
+                        }
+                        break;
+                    case PO_ON_USER_REMOVED:
+                        mPendingRemovedUsers.removeFirstIfSame(operation.user);
+                        break;
+                    case PO_ON_FACTORY_RESET:
+                        if (mFactoryResetCallback == operation.factoryResetCallback) {
+                            mFactoryResetCallbackSent = true;
+                        }
+                        break;
+                }
+            }
+            mReconnectionMetrics.onOperationSent(epoch, operation.operationId, durationMs);
+        }
     }
 
     /**
      * Sends user life-cycle events to CarService.
+     *
+     * <p>The event is delivered asynchronously, so this method doesn't block on CarService.
      */
     void sendUserLifecycleEvent(@UserLifecycleEventType int eventType, @Nullable TargetUser from,
             @NonNull TargetUser to) {
@@ -427,31 +522,189 @@ final class CarServiceProxy {
                 }
                 return;
             }
+            if (eventType == USER_LIFECYCLE_EVENT_TYPE_STOPPED
+                    && coalesceStoppedUserLocked(toId)) {
+                return;
+            }
+            queueLifecycleEventLocked(eventType, fromId, toId);
+        }
+        scheduleDispatch();
+    }
+
+    /**
+     * Drops the queued events of a stopped user if CarService wasn't told yet that the user was
+     * starting, as for CarService it's the same as if the user had never started (which is also
+     * what {@link #mLastUserLifecycle} would replay). It happens when a user is started and
+     * stopped quickly, like when pre-creating users.
+     *
+     * @return whether the events were dropped, in which case the {@code STOPPED} event must not be
+     * sent either.
+     */
+    @GuardedBy("mLock")
+    private boolean coalesceStoppedUserLocked(@UserIdInt int userId) {
+        LifecycleEvent firstEvent = null;
+        for (PendingCall call : mPendingCalls) {
+            if (!(call instanceof LifecycleEvent)) {
+                continue;
+            }
+            LifecycleEvent event = (LifecycleEvent) call;
+            if (event.fromId == userId) {
+                // Keep it simple, don't touch switches from the user
+                return false;
+            }
+            if (firstEvent == null && event.toId == userId) {
+                firstEvent = event;
+            }
+        }
+        if (firstEvent == null || firstEvent.eventType != USER_LIFECYCLE_EVENT_TYPE_STARTING) {
+            return false;
         }
-        sendUserLifecycleEvent(eventType, fromId, toId);
+        int dropped = 1; // the STOPPED event
+        int droppedReplayed = 0;
+        for (Iterator<PendingCall> it = mPendingCalls.iterator(); it.hasNext();) {
+            PendingCall call = it.next();
+            if (call instanceof LifecycleEvent && ((LifecycleEvent) call).toId == userId) {
+                it.remove();
+                dropped++;
+                if (((LifecycleEvent) call).replayed) {
+                    droppedReplayed++;
+                }
+            }
+        }
+        if (DBG) Slog.d(TAG, "Dropped " + dropped + " lifecycle events of user " + userId);
+        mCoalescedLifecycleEvents += dropped;
+        if (droppedReplayed > 0) {
+            mReconnectionMetrics.onReplayedLifecycleEventsDropped(mConnectionEpoch,
+                    droppedReplayed, SystemClock.uptimeMillis());
+        }
+        return true;
+    }
+
+    @GuardedBy("mLock")
+    private void queueLifecycleEventLocked(@UserLifecycleEventType int eventType,
+            @UserIdInt int fromId, @UserIdInt int toId) {
+        mPendingCalls.addLast(
+                new LifecycleEvent(eventType, fromId, toId, /* replayed= */ false));
     }
 
-    private void sendUserLifecycleEvent(@UserLifecycleEventType int eventType,
+    @GuardedBy("mLock")
+    private void replayLifecycleEventLocked(@UserLifecycleEventType int eventType,
             @UserIdInt int fromId, @UserIdInt int toId) {
+        mPendingCalls.addLast(
+                new LifecycleEvent(eventType, fromId, toId, /* replayed= */ true));
+    }
+
+    @GuardedBy("mLock")
+    private void queueOperationLocked(@PendingOperationId int operationId) {
+        mPendingCalls.addLast(new PendingOperation(operationId));
+    }
+
+    /**
+     * Queues an operation requested while CarService is connected; otherwise it's queued when
+     * CarService connects, by {@link #handleCarServiceConnection}.
+     */
+    @GuardedBy("mLock")
+    private void queueOperationIfConnectedLocked(@PendingOperationId int operationId) {
+        if (mCarService != null) {
+            queueOperationLocked(operationId);
+        }
+    }
+
+    private void scheduleDispatch() {
+        synchronized (mLock) {
+            if (mDispatchScheduled || mCarService == null) {
+                return;
+            }
+            mDispatchScheduled = true;
+        }
+        mDispatcherExecutor.execute(this::dispatch);
+    }
+
+    /**
+     * Delivers the queued life-cycle events and pending operations in order, until there's nothing
+     * left to send.
+     *
+     * <p>Calls are taken in batches (like the whole replay after a reconnection) with a single
+     * lock acquisition, then sent in one pass without holding the lock.
+     */
+    private void dispatch() {
+        while (true) {
+            ICarSystemServerClient carService;
+            int epoch;
+            synchronized (mLock) {
+                // mCarService is null after a crash, which also clears the queue
+                if (mCarService == null || mPendingCalls.isEmpty()) {
+                    if (mCarService == null && mCarServiceCrashed
+                            && hasUnsentOperationsLocked()) {
+                        Slog.w(TAG, "CarServiceCrashed. Pending operations will be executed after"
+                                + " reconnection");
+                    }
+                    mDispatchScheduled = false;
+                    return;
+                }
+                carService = mCarService;
+                epoch = mConnectionEpoch;
+                mBatch.addAll(mPendingCalls);
+                mPendingCalls.clear();
+                resolveOperationsLocked();
+            }
+            try {
+                sendBatch(carService, epoch);
+            } finally {
+                mBatch.clear();
+            }
+        }
+    }
+
+    private void sendBatch(ICarSystemServerClient carService, int epoch) {
+        if (DBG) Slog.d(TAG, "Sending " + mBatch.size() + " calls");
+        for (int i = 0; i < mBatch.size(); i++) {
+            PendingCall call = mBatch.get(i);
+            try {
+                if (call instanceof PendingOperation) {
+                    sendOperation(carService, epoch, (PendingOperation) call);
+                } else {
+                    sendLifecycleEvent(carService, epoch, (LifecycleEvent) call);
+                }
+            } catch (RemoteException e) {
+                Slog.w(TAG, "RemoteException from car service", e);
+                handleCarServiceCrash(epoch);
+                return;
+            }
+        }
+    }
+
+    private void sendLifecycleEvent(ICarSystemServerClient carService, int epoch,
+            LifecycleEvent event) throws RemoteException {
         if (DBG) {
-            Slog.d(TAG, "sendUserLifecycleEvent():" + " eventType=" + eventType + ", fromId="
-                    + fromId + ", toId=" + toId);
+            Slog.d(TAG, "sendUserLifecycleEvent():" + " eventType=" + event.eventType
+                    + ", fromId=" + event.fromId + ", toId=" + event.toId);
         }
-        try {
+        long startMs = SystemClock.uptimeMillis();
+        carService.onUserLifecycleEvent(event.eventType, event.fromId, event.toId);
+        if (event.replayed) {
+            long endMs = SystemClock.uptimeMillis();
             synchronized (mLock) {
-                if (isServiceCrashedLoggedLocked("sendUserLifecycleEvent")) return;
-                mCarService.onUserLifecycleEvent(eventType, fromId, toId);
+                mReconnectionMetrics.onLifecycleEventReplayed(epoch, event.toId,
+                        endMs - startMs, endMs);
             }
-        } catch (RemoteException e) {
-            Slog.w(TAG, "RemoteException from car service", e);
-            handleCarServiceCrash();
         }
     }
 
-    private void handleCarServiceCrash() {
+    /**
+     * Handles a {@link RemoteException} from the connection identified by {@code epoch}; it's
+     * ignored if CarService already reconnected, as the new connection replays what's pending.
+     */
+    private void handleCarServiceCrash(int epoch) {
         synchronized (mLock) {
+            if (epoch != mConnectionEpoch) {
+                return;
+            }
+            mConnectionEpoch++;
             mCarServiceCrashed = true;
             mCarService = null;
+            // Replayed from the pending operations and mLastUserLifecycle on reconnection
+            mPendingCalls.clear();
         }
         Slog.w(TAG, "CarServiceCrashed. No more car service calls before reconnection.");
         mCarServiceHelperService.handleCarServiceCrash();
@@ -461,55 +714,59 @@ final class CarServiceProxy {
         return new TimingsTraceAndSlog(TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
     }
 
-    @GuardedBy("mLock")
-    private boolean isServiceCrashedLoggedLocked(@PendingOperationId int operationId) {
-        return isServiceCrashedLoggedLocked(pendingOperationToString(operationId));
-    }
-
-    @GuardedBy("mLock")
-    private boolean isServiceCrashedLoggedLocked(@NonNull String operation) {
-        if (mCarServiceCrashed) {
-            Slog.w(TAG, "CarServiceCrashed. " + operation + " will be executed after reconnection");
-            return true;
-        }
-        return false;
-    }
-
     /**
      * Dump
      */
     void dump(IndentingPrintWriter writer) {
-        writer.println("CarServiceProxy");
-        writer.increaseIndent();
-        writer.printf("mLastSwitchedUser=%s\n", mLastSwitchedUser);
-        writer.printf("mInitialUser=%s\n", mInitialUser);
-        writer.printf("mLastUserLifecycle:\n");
-        int user0Lifecycle = mLastUserLifecycle.get(UserHandle.USER_SYSTEM, 0);
-        if (user0Lifecycle != 0) {
-            writer.printf("SystemUser Lifecycle Event:%s\n", user0Lifecycle);
-        } else {
-            writer.println("SystemUser not initialized");
-        }
-
-        int lastUserLifecycle = mLastUserLifecycle.get(mLastSwitchedUser, 0);
-        if (mLastSwitchedUser != UserHandle.USER_SYSTEM && user0Lifecycle != 0) {
-            writer.printf("last user (%s) Lifecycle Event:%s\n",
-                    mLastSwitchedUser, lastUserLifecycle);
-        }
-
-        int size = mPendingOperations.size();
-        if (size == 0) {
-            writer.println("No pending operations");
-        } else {
-            writer.printf("%d pending operation%s:\n", size, size == 1 ? "" : "s");
+        // The dispatcher thread updates the pending operations and the metrics
+        synchronized (mLock) {
+            writer.println("CarServiceProxy");
             writer.increaseIndent();
+            writer.printf("mLastSwitchedUser=%s\n", mLastSwitchedUser);
+            writer.printf("mInitialUser=%s\n", mInitialUser);
+            writer.printf("mLastUserLifecycle:\n");
+            int user0Lifecycle = mLastUserLifecycle.get(UserHandle.USER_SYSTEM, 0);
+            if (user0Lifecycle != 0) {
+                writer.printf("SystemUser Lifecycle Event:%s\n", user0Lifecycle);
+            } else {
+                writer.println("SystemUser not initialized");
+            }
+
+            int lastUserLifecycle = mLastUserLifecycle.get(mLastSwitchedUser, 0);
+            if (mLastSwitchedUser != UserHandle.USER_SYSTEM && user0Lifecycle != 0) {
+                writer.printf("last user (%s) Lifecycle Event:%s\n",
+                        mLastSwitchedUser, lastUserLifecycle);
+            }
+            writer.printf("Queued calls: %d\n", mPendingCalls.size());
+            writer.printf("Coalesced lifecycle events: %d\n", mCoalescedLifecycleEvents);
+
+            writer.printf("Pending %s: %b\n", pendingOperationToString(PO_INIT_BOOT_USER),
+                    mInitBootUserPending);
+            int size = mPendingRemovedUsers.size();
+            writer.printf("Pending %s: %d user%s", pendingOperationToString(PO_ON_USER_REMOVED),
+                    size, size == 1 ? "" : "s");
             for (int i = 0; i < size; i++) {
-                writer.println(mPendingOperations.valueAt(i));
+                writer.printf(" %d", mPendingRemovedUsers.get(i).id);
             }
+            writer.println();
+            writer.printf("Pending %s: %s\n", pendingOperationToString(PO_ON_FACTORY_RESET),
+                    mFactoryResetCallback);
+            writer.println("Reconnection metrics:");
+            writer.increaseIndent();
+            mReconnectionMetrics.dump(writer);
+            writer.decreaseIndent();
             writer.decreaseIndent();
+            dumpUserMetrics(writer);
+        }
+    }
+
+    /**
+     * Dumps the CarService reconnection metrics only, as {@code key=value} lines.
+     */
+    void dumpReconnectionMetrics(IndentingPrintWriter writer) {
+        synchronized (mLock) {
+            mReconnectionMetrics.dump(writer);
         }
-        writer.decreaseIndent();
-        dumpUserMetrics(writer);
     }
 
     /**
@@ -519,19 +776,216 @@ final class CarServiceProxy {
         mUserMetrics.dump(writer);
     }
 
-    private final class PendingOperation {
-        public final int id;
-        public @Nullable Object value;
+    /** Call queued for CarService. */
+    private abstract static class PendingCall {
+    }
+
+    private static final class LifecycleEvent extends PendingCall {
+        public final @UserLifecycleEventType int eventType;
+        public final @UserIdInt int fromId;
+        public final @UserIdInt int toId;
+        // Whether it's replayed from mLastUserLifecycle on connection
+        public final boolean replayed;
+
+        LifecycleEvent(@UserLifecycleEventType int eventType, @UserIdInt int fromId,
+                @UserIdInt int toId, boolean replayed) {
+            this.eventType = eventType;
+            this.fromId = fromId;
+            this.toId = toId;
+            this.replayed = replayed;
+        }
+    }
+
+    private static final class PendingOperation extends PendingCall {
+        public final @PendingOperationId int operationId;
+        // Set by the dispatcher when it takes the operation from the queue
+        public boolean send;
+        public int initBootUserRequests;
+        @Nullable
+        public UserInfo user;
+        @Nullable
+        public IResultReceiver factoryResetCallback;
+
+        PendingOperation(@PendingOperationId int operationId) {
+            this.operationId = operationId;
+        }
+    }
+
+    /**
+     * Timings of the last CarService (re)connection, and counters of all of them.
+     *
+     * <p>Guarded by {@link CarServiceProxy#mLock}.
+     */
+    private static final class ReconnectionMetrics {
+        private static final int[] OPERATIONS =
+                {PO_INIT_BOOT_USER, PO_ON_USER_REMOVED, PO_ON_FACTORY_RESET};
+
+        private int mConnections;
+        private int mReplayedLifecycleEvents;
+        private int mReplayedOperations;
+
+        // Last connection
+        private int mEpoch;
+        private long mConnectedUptimeMs;
+        // From the binder connection to handleCarServiceConnection(), or -1 if unknown
+        private long mHandshakeMs = -1;
+        private boolean mBacklogInitBootUser;
+        private int mBacklogRemovedUsers;
+        private boolean mBacklogFactoryReset;
+        private int mBacklogLifecycleEvents;
+        private int mBacklogUsers;
+        // Operations of the backlog not sent yet; key: @PendingOperationId, value: count
+        private final SparseIntArray mOperationsToReplay = new SparseIntArray();
+        // Key: @PendingOperationId, value: time spent sending the backlog
+        private final SparseLongArray mOperationReplayMs = new SparseLongArray();
+        private int mLifecycleEventsToReplay;
+        // Key: user id, value: time spent sending the replayed life-cycle events of the user
+        private final SparseLongArray mUserReplayMs = new SparseLongArray();
+        // From the connection to the last replayed life-cycle event, or -1 if not done
+        private long mLifecycleReplayMs = -1;
+
+        void onConnected(int epoch, long nowMs, long binderConnectedUptimeMs,
+                boolean initBootUser, int removedUsers, boolean factoryReset,
+                int lifecycleEvents, int users) {
+            mConnections++;
+            mEpoch = epoch;
+            mConnectedUptimeMs = nowMs;
+            mHandshakeMs = binderConnectedUptimeMs == 0 ? -1 : nowMs - binderConnectedUptimeMs;
+            mBacklogInitBootUser = initBootUser;
+            mBacklogRemovedUsers = removedUsers;
+            mBacklogFactoryReset = factoryReset;
+            mBacklogLifecycleEvents = lifecycleEvents;
+            mBacklogUsers = users;
+            mOperationsToReplay.clear();
+            mOperationsToReplay.put(PO_INIT_BOOT_USER, initBootUser ? 1 : 0);
+            mOperationsToReplay.put(PO_ON_USER_REMOVED, removedUsers);
+            mOperationsToReplay.put(PO_ON_FACTORY_RESET, factoryReset ? 1 : 0);
+            mOperationReplayMs.clear();
+            mLifecycleEventsToReplay = lifecycleEvents;
+            mUserReplayMs.clear();
+            mLifecycleReplayMs = lifecycleEvents == 0 ? 0 : -1;
+        }
+
+        void onOperationSent(int epoch, @PendingOperationId int operationId, long durationMs) {
+            int toReplay = mOperationsToReplay.get(operationId);
+            if (epoch != mEpoch || toReplay == 0) {
+                return;
+            }
+            mOperationsToReplay.put(operationId, toReplay - 1);
+            mOperationReplayMs.put(operationId,
+                    mOperationReplayMs.get(operationId) + durationMs);
+            mReplayedOperations++;
+        }
+
+        void onLifecycleEventReplayed(int epoch, @UserIdInt int userId, long durationMs,
+                long nowMs) {
+            if (epoch != mEpoch || mLifecycleEventsToReplay == 0) {
+                return;
+            }
+            mUserReplayMs.put(userId, mUserReplayMs.get(userId) + durationMs);
+            mReplayedLifecycleEvents++;
+            if (--mLifecycleEventsToReplay == 0) {
+                mLifecycleReplayMs = nowMs - mConnectedUptimeMs;
+            }
+        }
+
+        /**
+         * Called when replayed life-cycle events are dropped before being sent, as they're not
+         * going to be replayed anymore.
+         */
+        void onReplayedLifecycleEventsDropped(int epoch, int count, long nowMs) {
+            if (epoch != mEpoch || mLifecycleEventsToReplay == 0) {
+                return;
+            }
+            mLifecycleEventsToReplay = Math.max(mLifecycleEventsToReplay - count, 0);
+            if (mLifecycleEventsToReplay == 0) {
+                mLifecycleReplayMs = nowMs - mConnectedUptimeMs;
+            }
+        }
+
+        void dump(IndentingPrintWriter writer) {
+            writer.printf("connections=%d\n", mConnections);
+            writer.printf("replayedOperations=%d\n", mReplayedOperations);
+            writer.printf("replayedLifecycleEvents=%d\n", mReplayedLifecycleEvents);
+            if (mConnections == 0) {
+                return;
+            }
+            writer.printf("last.handshakeMs=%d\n", mHandshakeMs);
+            writer.printf("last.backlog.initBootUser=%b\n", mBacklogInitBootUser);
+            writer.printf("last.backlog.removedUsers=%d\n", mBacklogRemovedUsers);
+            writer.printf("last.backlog.factoryReset=%b\n", mBacklogFactoryReset);
+            writer.printf("last.backlog.lifecycleEvents=%d\n", mBacklogLifecycleEvents);
+            writer.printf("last.backlog.users=%d\n", mBacklogUsers);
+            for (int operationId : OPERATIONS) {
+                int index = mOperationReplayMs.indexOfKey(operationId);
+                if (index >= 0) {
+                    writer.printf("last.replayMs.%s=%d\n",
+                            DebugUtils.constantToString(CarServiceProxy.class, "PO_",
+                                    operationId), mOperationReplayMs.valueAt(index));
+                }
+            }
+            for (int i = 0; i < mUserReplayMs.size(); i++) {
+                writer.printf("last.replayMs.user%d=%d\n", mUserReplayMs.keyAt(i),
+                        mUserReplayMs.valueAt(i));
+            }
+            writer.printf("last.lifecycleReplayMs=%d\n", mLifecycleReplayMs);
+        }
+    }
+
+    /**
+     * Fixed-capacity FIFO of removed users; when full, adding a user drops the oldest one.
+     */
+    @VisibleForTesting
+    static final class RemovedUsersQueue {
+        private final UserInfo[] mUsers;
+        private int mHead;
+        private int mSize;
+
+        RemovedUsersQueue(int capacity) {
+            mUsers = new UserInfo[capacity];
+        }
+
+        /**
+         * Adds a user at the end.
+         *
+         * @return the user dropped to make room for it, or {@code null}.
+         */
+        @Nullable
+        UserInfo add(@NonNull UserInfo user) {
+            UserInfo dropped = null;
+            if (mSize == mUsers.length) {
+                dropped = removeFirst();
+            }
+            mUsers[(mHead + mSize) % mUsers.length] = user;
+            mSize++;
+            return dropped;
+        }
+
+        int size() {
+            return mSize;
+        }
 
-        PendingOperation(int id, @Nullable Object value) {
-            this.id = id;
-            this.value = value;
+        @NonNull
+        UserInfo get(int index) {
+            return mUsers[(mHead + index) % mUsers.length];
+        }
+
+        /**
+         * Removes the first user, if it's the given one (it might have been dropped already).
+         */
+        void removeFirstIfSame(@NonNull UserInfo user) {
+            if (mSize > 0 && mUsers[mHead] == user) {
+                removeFirst();
+            }
         }
 
-        @Override
-        public String toString() {
-            return "PendingOperation[" + pendingOperationToString(id)
-                + (value == null ? "" : ": " + value) + "]";
+        @NonNull
+        UserInfo removeFirst() {
+            UserInfo user = mUsers[mHead];
+            mUsers[mHead] = null;
+            mHead = (mHead + 1) % mUsers.length;
+            mSize--;
+            return user;
         }
     }
 
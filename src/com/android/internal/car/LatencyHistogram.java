@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.car;
+
+import android.annotation.NonNull;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of latencies, which can be recorded concurrently without locking or
+ * allocating.
+ *
+ * <p>Values below {@link #SUB_BUCKET_COUNT} get their own bucket; above that, every power of 2 is
+ * split into {@link #SUB_BUCKET_COUNT} linear buckets, so the relative error of any bucket is at
+ * most {@code 1 / SUB_BUCKET_COUNT}. The unit of the values is up to the caller, and it's only
+ * used for dumping.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    @VisibleForTesting
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+    // Enough buckets for any non-negative long
+    private static final int BUCKET_COUNT = getBucketIndex(Long.MAX_VALUE) + 1;
+
+    private static final int[] DUMPED_PERCENTILES = {50, 90, 99};
+
+    private final String mUnit;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Creates a new histogram.
+     *
+     * @param unit unit of the recorded values (like {@code "ms"}), used when dumping
+     */
+    public LatencyHistogram(@NonNull String unit) {
+        mUnit = unit;
+    }
+
+    /**
+     * Records a value. Negative values (for example, due to clock adjustments) are recorded as
+     * {@code 0}.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(getBucketIndex(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        do {
+            max = mMax.get();
+        } while (value > max && !mMax.compareAndSet(max, value));
+    }
+
+    /** Gets the number of recorded values. */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** Gets the highest recorded value. */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Gets an upper bound of the given percentile (between {@code 0} and {@code 100}), or
+     * {@code 0} if nothing was recorded.
+     */
+    public long getPercentile(int percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        // Rank of the value, rounded up
+        long rank = Math.max(1, (count * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /** Dumps the summary and the non-empty buckets. */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        long count = mCount.get();
+        if (count == 0) {
+            pw.println("no samples");
+            return;
+        }
+        pw.printf("count=%d avg=%d%s max=%d%s", count, mSum.get() / count, mUnit, mMax.get(),
+                mUnit);
+        for (int percentile : DUMPED_PERCENTILES) {
+            pw.printf(" p%d<=%d%s", percentile, getPercentile(percentile), mUnit);
+        }
+        pw.println();
+        pw.increaseIndent();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long bucketCount = mBuckets.get(i);
+            if (bucketCount == 0) continue;
+            pw.printf("[%d-%d]%s: %d\n", getBucketLowerBound(i), getBucketUpperBound(i), mUnit,
+                    bucketCount);
+        }
+        pw.decreaseIndent();
+    }
+
+    @VisibleForTesting
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & SUB_BUCKET_MASK;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    @VisibleForTesting
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        return ((long) (SUB_BUCKET_COUNT + (index & SUB_BUCKET_MASK))) << shift;
+    }
+
+    @VisibleForTesting
+    static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        return getBucketLowerBound(index) + (1L << shift) - 1;
+    }
+}
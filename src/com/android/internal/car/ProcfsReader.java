@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.car;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads what the car watchdog needs to know about a process from {@code /proc}, reusing the same
+ * direct buffer for every file. Opening the files still allocates (their {@link Path} and
+ * {@link FileChannel}), as does the name of the process.
+ *
+ * <p>Not thread-safe: it's meant to be owned by the thread terminating processes.
+ */
+final class ProcfsReader {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final byte[] ZYGOTE_PREFIX = "zygote".getBytes(StandardCharsets.US_ASCII);
+    // Like webview_zygote, or the app zygotes (<package>_zygote)
+    private static final byte[] ZYGOTE_SUFFIX = "_zygote".getBytes(StandardCharsets.US_ASCII);
+
+    private final String mProcRoot;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] mNameBytes = new byte[BUFFER_SIZE];
+
+    ProcfsReader() {
+        this("/proc");
+    }
+
+    @VisibleForTesting
+    ProcfsReader(@NonNull String procRoot) {
+        mProcRoot = procRoot;
+    }
+
+    /**
+     * Reads the name of the process and whether it's a Java app.
+     *
+     * <p>A process is a Java app if it was forked by a zygote, which is checked on the name of its
+     * parent. Checking its executable is not enough, as apps and zygotes run the same one. If the
+     * parent can't be read (for example, it's gone already), the process is considered native.
+     *
+     * @throws IOException if the process is gone.
+     */
+    @NonNull
+    ProcessInfo readProcessInfo(int pid) throws IOException {
+        Path dir = getProcessDir(pid);
+        readFile(dir, "stat");
+        int ppid = parseParentPid();
+        String name = readProcessName(dir);
+        boolean javaApp = false;
+        if (ppid > 0) {
+            try {
+                readFile(getProcessDir(ppid), "cmdline");
+                javaApp = isZygoteCommandLine();
+            } catch (IOException e) {
+                // Reparented or gone, so it's not the zygote
+            }
+        }
+        return new ProcessInfo(pid, name, javaApp);
+    }
+
+    @NonNull
+    private String readProcessName(@NonNull Path dir) throws IOException {
+        // mBuffer holds the stat file, whose comm (truncated name) is used if there's no cmdline,
+        // like for kernel threads.
+        int commStart = indexOf('(', 0) + 1;
+        int commEnd = lastIndexOf(')');
+        String comm = toString(commStart, commEnd);
+        readFile(dir, "cmdline");
+        int end = argv0End();
+        if (end == 0) {
+            return comm;
+        }
+        return toString(lastIndexOf('/', end) + 1, end);
+    }
+
+    /** Parses the ppid from the stat file in {@link #mBuffer}: {@code pid (comm) state ppid}. */
+    private int parseParentPid() throws IOException {
+        // comm can contain spaces and parenthesis, so it's delimited by the last one
+        int index = lastIndexOf(')');
+        if (index < 0) {
+            throw new IOException("Invalid stat file");
+        }
+        // Skip ") S "
+        index += 4;
+        int ppid = 0;
+        int limit = mBuffer.limit();
+        for (; index < limit; index++) {
+            byte b = mBuffer.get(index);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            ppid = ppid * 10 + (b - '0');
+        }
+        return ppid;
+    }
+
+    private boolean isZygoteCommandLine() {
+        int end = argv0End();
+        int start = lastIndexOf('/', end) + 1;
+        return regionMatches(start, ZYGOTE_PREFIX)
+                || (end - ZYGOTE_SUFFIX.length >= start
+                        && regionMatches(end - ZYGOTE_SUFFIX.length, ZYGOTE_SUFFIX));
+    }
+
+    /**
+     * Gets the end of the first argument of the cmdline file in {@link #mBuffer}; it also stops at
+     * spaces, as some processes overwrite their arguments with a space separated command line.
+     */
+    private int argv0End() {
+        int limit = mBuffer.limit();
+        for (int i = 0; i < limit; i++) {
+            byte b = mBuffer.get(i);
+            if (b == '\0' || b == ' ') {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    private boolean regionMatches(int start, byte[] bytes) {
+        if (start + bytes.length > mBuffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (mBuffer.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from) {
+        int limit = mBuffer.limit();
+        for (int i = from; i < limit; i++) {
+            if (mBuffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int lastIndexOf(char c) {
+        return lastIndexOf(c, mBuffer.limit());
+    }
+
+    private int lastIndexOf(char c, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (mBuffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String toString(int start, int end) {
+        if (start >= end) {
+            return "";
+        }
+        mBuffer.position(start);
+        mBuffer.get(mNameBytes, 0, end - start);
+        return new String(mNameBytes, 0, end - start, StandardCharsets.UTF_8);
+    }
+
+    @NonNull
+    private Path getProcessDir(int pid) {
+        return Paths.get(mProcRoot, Integer.toString(pid));
+    }
+
+    /** Reads {@code <dir>/<file>} into {@link #mBuffer}, ready to be read. */
+    private void readFile(@NonNull Path dir, @NonNull String file) throws IOException {
+        mBuffer.clear();
+        try (FileChannel channel = FileChannel.open(dir.resolve(file),
+                StandardOpenOption.READ)) {
+            while (mBuffer.hasRemaining() && channel.read(mBuffer) > 0) {
+                // Keep reading, procfs files can be read in several chunks
+            }
+        }
+        mBuffer.flip();
+    }
+
+    /** Information about a process. */
+    static final class ProcessInfo {
+        public final int pid;
+        @NonNull
+        public final String name;
+        public final boolean isJavaApp;
+
+        ProcessInfo(int pid, @NonNull String name, boolean isJavaApp) {
+            this.pid = pid;
+            this.name = name;
+            this.isJavaApp = isJavaApp;
+        }
+
+        @Override
+        public String toString() {
+            return "ProcessInfo[pid=" + pid + ", name=" + name + ", isJavaApp=" + isJavaApp + "]";
+        }
+    }
+}
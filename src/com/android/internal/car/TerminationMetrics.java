@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.car;
+
+import android.annotation.NonNull;
+import android.util.IndentingPrintWriter;
+import android.util.TimeUtils;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Metrics for the termination of the clients reported as unresponsive by the car watchdog daemon.
+ *
+ * <p>It keeps counters and a histogram of the report latencies since boot, and the last
+ * {@link #HISTORY_SIZE} terminations in a ring of preallocated arrays, so recording doesn't
+ * allocate.
+ */
+final class TerminationMetrics {
+
+    @VisibleForTesting
+    static final int HISTORY_SIZE = 20;
+
+    private final Object mLock = new Object();
+
+    // Time from the report of the daemon to tellDumpFinished()
+    private final LatencyHistogram mReportLatencies = new LatencyHistogram("ms");
+
+    @GuardedBy("mLock")
+    private long mTerminations;
+    @GuardedBy("mLock")
+    private long mJavaTerminations;
+    @GuardedBy("mLock")
+    private long mSkippedDumps;
+    @GuardedBy("mLock")
+    private long mMissedDeadlines;
+
+    // Index of the next entry of the ring
+    @GuardedBy("mLock")
+    private int mNext;
+    @GuardedBy("mLock")
+    private final long[] mUptimesMs = new long[HISTORY_SIZE];
+    @GuardedBy("mLock")
+    private final int[] mPids = new int[HISTORY_SIZE];
+    @GuardedBy("mLock")
+    private final String[] mNames = new String[HISTORY_SIZE];
+    @GuardedBy("mLock")
+    private final boolean[] mJavaApps = new boolean[HISTORY_SIZE];
+    // -1 if the dump was skipped
+    @GuardedBy("mLock")
+    private final long[] mDumpDurationsMs = new long[HISTORY_SIZE];
+    @GuardedBy("mLock")
+    private final long[] mKillDelaysMs = new long[HISTORY_SIZE];
+    @GuardedBy("mLock")
+    private final long[] mReportLatenciesMs = new long[HISTORY_SIZE];
+
+    /**
+     * Records the termination of a process.
+     *
+     * @param uptimeMs when it was reported to the daemon
+     * @param dumpDurationMs how long the (shared) dump took, or {@code -1} if it was skipped
+     * @param killDelayMs how long the kill was delayed for, after the report
+     * @param reportLatencyMs time from the daemon's request to the report
+     * @param missedDeadline whether it was reported after the deadline
+     */
+    public void onProcessTerminated(long uptimeMs, int pid, @NonNull String name,
+            boolean javaApp, long dumpDurationMs, long killDelayMs, long reportLatencyMs,
+            boolean missedDeadline) {
+        mReportLatencies.record(reportLatencyMs);
+        synchronized (mLock) {
+            mTerminations++;
+            if (javaApp) {
+                mJavaTerminations++;
+            }
+            if (dumpDurationMs < 0) {
+                mSkippedDumps++;
+            }
+            if (missedDeadline) {
+                mMissedDeadlines++;
+            }
+            mUptimesMs[mNext] = uptimeMs;
+            mPids[mNext] = pid;
+            mNames[mNext] = name;
+            mJavaApps[mNext] = javaApp;
+            mDumpDurationsMs[mNext] = dumpDurationMs;
+            mKillDelaysMs[mNext] = killDelayMs;
+            mReportLatenciesMs[mNext] = reportLatencyMs;
+            mNext = (mNext + 1) % HISTORY_SIZE;
+        }
+    }
+
+    @VisibleForTesting
+    long getTerminations() {
+        synchronized (mLock) {
+            return mTerminations;
+        }
+    }
+
+    /**
+     * Dumps the counters, the histogram and the history, from the oldest termination.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw, long nowUptimeMs) {
+        synchronized (mLock) {
+            pw.printf("terminations=%d java=%d native=%d skippedDumps=%d missedDeadlines=%d\n",
+                    mTerminations, mJavaTerminations, mTerminations - mJavaTerminations,
+                    mSkippedDumps, mMissedDeadlines);
+            pw.print("reportLatency: ");
+            mReportLatencies.dump(pw);
+            int size = (int) Math.min(mTerminations, HISTORY_SIZE);
+            pw.printf("Last %d terminations:\n", size);
+            pw.increaseIndent();
+            for (int i = 0; i < size; i++) {
+                int index = (mNext - size + i + HISTORY_SIZE) % HISTORY_SIZE;
+                TimeUtils.formatDuration(mUptimesMs[index] - nowUptimeMs, pw);
+                pw.printf(" pid=%d name=%s %s dump=%s killDelay=%dms reportLatency=%dms\n",
+                        mPids[index], mNames[index], mJavaApps[index] ? "java" : "native",
+                        mDumpDurationsMs[index] < 0 ? "skipped" : mDumpDurationsMs[index] + "ms",
+                        mKillDelaysMs[index], mReportLatenciesMs[index]);
+            }
+            pw.decreaseIndent();
+        }
+    }
+}
@@ -30,9 +30,13 @@ import android.hardware.display.DisplayManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ServiceSpecificException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+import android.util.IntArray;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.view.Display;
 import android.window.DisplayAreaOrganizer;
@@ -40,10 +44,15 @@ import android.window.WindowContainerToken;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.car.LatencyHistogram;
+import com.android.internal.util.ArrayUtils;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Class to control the assignment of a display for Car while launching a Activity.
@@ -70,6 +79,27 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
      */
     public static final int ERROR_CODE_ACTIVITY_NOT_FOUND = -101;
 
+    // Decisions taken by onCalculate(), counted for dumpsys. The first 3 pick the target display
+    // area and are counted in addition to one of the others, which are exclusive.
+    private static final int DECISION_PERSISTENT_ACTIVITY = 0;
+    private static final int DECISION_SOURCE_PREFERRED = 1;
+    private static final int DECISION_UNTRUSTED_VIRTUAL_DISPLAY = 2;
+    private static final int DECISION_DRIVER = 3;
+    private static final int DECISION_SYSTEM_USER = 4;
+    private static final int DECISION_PASSENGER_ALLOWED = 5;
+    private static final int DECISION_PASSENGER_REMAP = 6;
+    private static final int DECISION_SKIP = 7;
+    private static final String[] DECISION_NAMES = {
+            "persistent activity",
+            "source preferred",
+            "untrusted virtual display",
+            "driver",
+            "system user",
+            "passenger allowed",
+            "passenger remap",
+            "skip"
+    };
+
     private final Context mContext;
 
     private DisplayManager mDisplayManager;  // set only from init()
@@ -87,9 +117,11 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
      * This one is for holding all passenger (=profile user) displays which are mostly static unless
      * displays are added / removed. Note that {@link #mDisplayToProfileUserMapping} can be empty
      * while user is assigned and that cannot always tell if specific display is for driver or not.
+     * The order is the one given to {@link #setPassengerDisplays(int[])}, as the 1st display is
+     * the default passenger display.
      */
     @GuardedBy("mLock")
-    private final ArrayList<Integer> mPassengerDisplays = new ArrayList<>();
+    private final IntArray mPassengerDisplays = new IntArray();
 
     /** key: display id, value: profile user id */
     @GuardedBy("mLock")
@@ -103,11 +135,40 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
     private boolean mIsSourcePreferred;
 
     @GuardedBy("mLock")
-    private List<ComponentName> mSourcePreferredComponents;
+    private Set<ComponentName> mSourcePreferredComponents;
 
     @GuardedBy("mLock")
     private final ArrayMap<ComponentName, TaskDisplayArea> mPersistentActivities = new ArrayMap<>();
 
+    /**
+     * Version of the policy, incremented every time it changes (i.e., by every setter and user
+     * lifecycle callback), so launch decisions can be tied to the policy they were made with.
+     */
+    @GuardedBy("mLock")
+    private int mPolicyGeneration;
+
+    /**
+     * Immutable copy of the policy above, used by {@link #onCalculate} without holding
+     * {@link #mLock}. It is replaced (never modified) by {@link #publishPolicyLocked()} whenever
+     * the policy changes.
+     */
+    @NonNull
+    private volatile PolicySnapshot mPolicy = new PolicySnapshot(this);
+
+    private final Object mDisplayAreaCacheLock = new Object();
+
+    /**
+     * key: display id, value: default {@link TaskDisplayArea} of the display. Only displays
+     * that could be resolved are cached; it's cleared whenever a display is changed or removed,
+     * and an entry is dropped when it's found removed before that.
+     */
+    @GuardedBy("mDisplayAreaCacheLock")
+    private final SparseArray<TaskDisplayArea> mDefaultTaskDisplayAreaCache = new SparseArray<>();
+
+    // Updated by every onCalculate(), so they're lock-free
+    private final AtomicLongArray mDecisionCounts = new AtomicLongArray(DECISION_NAMES.length);
+    private final LatencyHistogram mDecisionLatencyUs = new LatencyHistogram("us");
+
     @VisibleForTesting
     final DisplayManager.DisplayListener mDisplayListener =
             new DisplayManager.DisplayListener() {
@@ -118,15 +179,20 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
 
         @Override
         public void onDisplayRemoved(int displayId) {
+            clearDefaultTaskDisplayAreaCache();
             synchronized (mLock) {
-                mPassengerDisplays.remove(Integer.valueOf(displayId));
+                int index = mPassengerDisplays.indexOf(displayId);
+                if (index >= 0) {
+                    mPassengerDisplays.remove(index);
+                }
                 updateProfileUserConfigForDisplayRemovalLocked(displayId);
+                publishPolicyLocked();
             }
         }
 
         @Override
         public void onDisplayChanged(int displayId) {
-            // ignore
+            clearDefaultTaskDisplayAreaCache();
         }
     };
 
@@ -170,10 +236,11 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
             @Nullable List<ComponentName> sourcePreferredComponents) {
         synchronized (mLock) {
             mIsSourcePreferred = enableSourcePreferred;
-            mSourcePreferredComponents = sourcePreferredComponents;
-            if (mSourcePreferredComponents != null) {
-                Collections.sort(mSourcePreferredComponents);
-            }
+            // Hashed, so launches only need to compare the components with the same hash code,
+            // which ComponentName computes from the (cached) hash codes of its strings.
+            mSourcePreferredComponents = sourcePreferredComponents == null ? null
+                    : new HashSet<>(sourcePreferredComponents);
+            publishPolicyLocked();
         }
     }
 
@@ -183,6 +250,7 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
             mCurrentDriverUser = newUserId;
             mDefaultDisplayForProfileUser.clear();
             mDisplayToProfileUserMapping.clear();
+            publishPolicyLocked();
         }
     }
 
@@ -201,6 +269,7 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
         // non-current user before stopping the user.
         synchronized (mLock) {
             removeUserFromAllowlistsLocked(stoppedUser);
+            publishPolicyLocked();
         }
     }
 
@@ -218,29 +287,73 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
                     + " displays:" + displayIds);
         }
         synchronized (mLock) {
+            setDisplayAllowListForUserLocked(userId, displayIds);
+            publishPolicyLocked();
+        }
+    }
+
+    /**
+     * Sets the display allowlists of several users at once, as if
+     * {@link #setDisplayAllowListForUser(int, int[])} was called for each of them, but atomically:
+     * no Activity launch sees only part of the new assignment.
+     *
+     * @param allowlists key: user id, value: display allowlist of the user
+     * @throws IllegalArgumentException if an allowlist is {@code null} or a display is assigned to
+     * more than one user, in which case nothing is changed
+     */
+    public void setDisplayAllowListForUsers(@NonNull SparseArray<int[]> allowlists) {
+        if (DBG) {
+            Slog.d(TAG, "setDisplayAllowListForUsers: " + allowlists.size() + " users");
+        }
+        // key: display id, value: user id
+        SparseIntArray assignedDisplays = new SparseIntArray();
+        for (int i = 0; i < allowlists.size(); i++) {
+            int userId = allowlists.keyAt(i);
+            int[] displayIds = allowlists.valueAt(i);
+            if (displayIds == null) {
+                throw new IllegalArgumentException("null allowlist for user " + userId);
+            }
             for (int displayId : displayIds) {
-                if (!mPassengerDisplays.contains(displayId)) {
-                    Slog.w(TAG, "setDisplayAllowlistForUser called with display:" + displayId
-                            + " not in passenger display list:" + mPassengerDisplays);
-                    continue;
-                }
-                if (userId == mCurrentDriverUser) {
-                    mDisplayToProfileUserMapping.delete(displayId);
-                } else {
-                    mDisplayToProfileUserMapping.put(displayId, userId);
-                }
-                // now the display cannot be a default display for other user
-                int i = mDefaultDisplayForProfileUser.indexOfValue(displayId);
-                if (i >= 0) {
-                    mDefaultDisplayForProfileUser.removeAt(i);
+                int assignedUserId = assignedDisplays.get(displayId, UserHandle.USER_NULL);
+                if (assignedUserId != UserHandle.USER_NULL && assignedUserId != userId) {
+                    throw new IllegalArgumentException("display " + displayId
+                            + " assigned to both user " + assignedUserId + " and user " + userId);
                 }
+                assignedDisplays.put(displayId, userId);
+            }
+        }
+        synchronized (mLock) {
+            for (int i = 0; i < allowlists.size(); i++) {
+                setDisplayAllowListForUserLocked(allowlists.keyAt(i), allowlists.valueAt(i));
+            }
+            publishPolicyLocked();
+        }
+    }
+
+    private void setDisplayAllowListForUserLocked(int userId, int[] displayIds) {
+        for (int displayId : displayIds) {
+            if (mPassengerDisplays.indexOf(displayId) < 0) {
+                Slog.w(TAG, "setDisplayAllowlistForUser called with display:" + displayId
+                        + " not in passenger display list:"
+                        + Arrays.toString(mPassengerDisplays.toArray()));
+                continue;
             }
-            if (displayIds.length > 0) {
-                mDefaultDisplayForProfileUser.put(userId, displayIds[0]);
+            if (userId == mCurrentDriverUser) {
+                mDisplayToProfileUserMapping.delete(displayId);
             } else {
-                removeUserFromAllowlistsLocked(userId);
+                mDisplayToProfileUserMapping.put(displayId, userId);
+            }
+            // now the display cannot be a default display for other user
+            int i = mDefaultDisplayForProfileUser.indexOfValue(displayId);
+            if (i >= 0) {
+                mDefaultDisplayForProfileUser.removeAt(i);
             }
         }
+        if (displayIds.length > 0) {
+            mDefaultDisplayForProfileUser.put(userId, displayIds[0]);
+        } else {
+            removeUserFromAllowlistsLocked(userId);
+        }
     }
 
     /**
@@ -255,19 +368,16 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
             Slog.d(TAG, "setPassengerDisplays displays:" + displayIdsForPassenger);
         }
         synchronized (mLock) {
-            for (int id : displayIdsForPassenger) {
-                mPassengerDisplays.remove(Integer.valueOf(id));
-            }
             // handle removed displays
             for (int i = 0; i < mPassengerDisplays.size(); i++) {
                 int displayId = mPassengerDisplays.get(i);
-                updateProfileUserConfigForDisplayRemovalLocked(displayId);
+                if (!ArrayUtils.contains(displayIdsForPassenger, displayId)) {
+                    updateProfileUserConfigForDisplayRemovalLocked(displayId);
+                }
             }
             mPassengerDisplays.clear();
-            mPassengerDisplays.ensureCapacity(displayIdsForPassenger.length);
-            for (int id : displayIdsForPassenger) {
-                mPassengerDisplays.add(id);
-            }
+            mPassengerDisplays.addAll(IntArray.wrap(displayIdsForPassenger));
+            publishPolicyLocked();
         }
     }
 
@@ -289,6 +399,7 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
             ActivityOptions options, @Nullable Request request, int phase,
             LaunchParamsController.LaunchParams currentParams,
             LaunchParamsController.LaunchParams outParams) {
+        long startTimeNs = SystemClock.elapsedRealtimeNanos();
         int userId;
         if (task != null) {
             userId = task.mUserId;
@@ -296,6 +407,7 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
             userId = activity.mUserId;
         } else {
             Slog.w(TAG, "onCalculate, cannot decide user");
+            recordDecision(DECISION_SKIP, startTimeNs);
             return RESULT_SKIP;
         }
         // DisplayArea where user wants to launch the Activity.
@@ -311,8 +423,12 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
         if (activity != null && activity.info != null) {
             activityName = activity.info.getComponentName();
         }
+        // Read the policy only once, so the whole decision is made against the same version even
+        // if it's updated concurrently.
+        PolicySnapshot policy = mPolicy;
+        int outcome;
         decision:
-        synchronized (mLock) {
+        {
             // If originalDisplayArea is set, respect that before ActivityOptions check.
             if (originalDisplayArea == null) {
                 if (options != null) {
@@ -329,14 +445,16 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
                     }
                 }
             }
-            if (mPersistentActivities.containsKey(activityName)) {
-                targetDisplayArea = mPersistentActivities.get(activityName);
+            if (policy.persistentActivities.containsKey(activityName)) {
+                targetDisplayArea = policy.persistentActivities.get(activityName);
+                mDecisionCounts.incrementAndGet(DECISION_PERSISTENT_ACTIVITY);
             } else if (originalDisplayArea == null  // No specified DA to launch the Activity
-                    && mIsSourcePreferred && source != null
-                    && (mSourcePreferredComponents == null || Collections.binarySearch(
-                            mSourcePreferredComponents, activity.info.getComponentName()) >= 0)) {
+                    && policy.isSourcePreferred && source != null
+                    && (policy.sourcePreferredComponents == null
+                            || policy.sourcePreferredComponents.contains(activityName))) {
                 targetDisplayArea = source.noDisplay ? source.mHandoverTaskDisplayArea
                         : source.getDisplayArea();
+                mDecisionCounts.incrementAndGet(DECISION_SOURCE_PREFERRED);
             } else if (originalDisplayArea == null
                     && task == null  // launching as a new task
                     && source != null && !source.getDisplayContent().isTrusted()
@@ -345,20 +463,24 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
                     Slog.d(TAG, "Disallow launch on virtual display for not-embedded activity.");
                 }
                 targetDisplayArea = getDefaultTaskDisplayAreaOnDisplay(Display.DEFAULT_DISPLAY);
+                mDecisionCounts.incrementAndGet(DECISION_UNTRUSTED_VIRTUAL_DISPLAY);
             }
-            if (userId == mCurrentDriverUser) {
+            if (userId == policy.currentDriverUser) {
                 // Respect the existing DisplayArea.
+                outcome = DECISION_DRIVER;
                 break decision;
             }
             if (userId == UserHandle.USER_SYSTEM) {
                 // This will be only allowed if it has FLAG_SHOW_FOR_ALL_USERS.
                 // The flag is not immediately accessible here so skip the check.
                 // But other WM policy will enforce it.
+                outcome = DECISION_SYSTEM_USER;
                 break decision;
             }
             // Now user is a passenger.
-            if (mPassengerDisplays.isEmpty()) {
+            if (policy.passengerDisplays.length == 0) {
                 // No displays for passengers. This could be old user and do not do anything.
+                outcome = DECISION_SKIP;
                 break decision;
             }
             if (targetDisplayArea == null) {
@@ -371,25 +493,30 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
             Display display = targetDisplayArea.mDisplayContent.getDisplay();
             if ((display.getFlags() & Display.FLAG_PRIVATE) != 0) {
                 // private display should follow its own restriction rule.
+                outcome = DECISION_SKIP;
                 break decision;
             }
             if (display.getType() == Display.TYPE_VIRTUAL) {
                 // TODO(b/132903422) : We need to update this after the bug is resolved.
                 // For now, don't change anything.
+                outcome = DECISION_SKIP;
                 break decision;
             }
-            int userForDisplay = mDisplayToProfileUserMapping.get(display.getDisplayId(),
-                    UserHandle.USER_NULL);
-            if (userForDisplay == userId) {
+            PassengerRoute route = policy.passengerRoutes.get(userId);
+            if (route != null && route.isDisplayAllowed(display.getDisplayId())) {
+                outcome = DECISION_PASSENGER_ALLOWED;
                 break decision;
             }
-            targetDisplayArea = getAlternativeDisplayAreaForPassengerLocked(
-                    userId, activity, request);
+            targetDisplayArea = getAlternativeDisplayAreaForPassenger(
+                    policy, route, activity, request);
+            outcome = DECISION_PASSENGER_REMAP;
         }
+        recordDecision(outcome, startTimeNs);
         if (targetDisplayArea != null && originalDisplayArea != targetDisplayArea) {
             Slog.i(TAG, "Changed launching display, user:" + userId
                     + " requested display area:" + originalDisplayArea
-                    + " target display area:" + targetDisplayArea);
+                    + " target display area:" + targetDisplayArea
+                    + " policy generation:" + policy.generation);
             outParams.mPreferredTaskDisplayArea = targetDisplayArea;
             return RESULT_DONE;
         } else {
@@ -397,91 +524,107 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
         }
     }
 
+    private void recordDecision(int decision, long startTimeNs) {
+        mDecisionCounts.incrementAndGet(decision);
+        mDecisionLatencyUs.record((SystemClock.elapsedRealtimeNanos() - startTimeNs) / 1_000);
+    }
+
     @Nullable
-    private TaskDisplayArea getAlternativeDisplayAreaForPassengerLocked(int userId,
-            @NonNull ActivityRecord activityRecord, @Nullable Request request) {
-        TaskDisplayArea sourceDisplayArea = sourceDisplayArea(userId, activityRecord, request);
+    private TaskDisplayArea getAlternativeDisplayAreaForPassenger(@NonNull PolicySnapshot policy,
+            @Nullable PassengerRoute route, @NonNull ActivityRecord activityRecord,
+            @Nullable Request request) {
+        // Without a route, no display is allowed for the user, so the source can't be used either.
+        TaskDisplayArea sourceDisplayArea = route == null ? null
+                : sourceDisplayArea(route, activityRecord, request);
 
-        return sourceDisplayArea != null ? sourceDisplayArea : fallbackDisplayArea(userId);
+        return sourceDisplayArea != null ? sourceDisplayArea : fallbackDisplayArea(policy, route);
     }
 
     @VisibleForTesting
     @Nullable
     TaskDisplayArea getDefaultTaskDisplayAreaOnDisplay(int displayId) {
-        DisplayContent dc = mAtm.mRootWindowContainer.getDisplayContentOrCreate(displayId);
-        if (dc == null) {
-            return null;
+        synchronized (mDisplayAreaCacheLock) {
+            TaskDisplayArea cached = mDefaultTaskDisplayAreaCache.get(displayId);
+            if (cached != null) {
+                if (isAttached(cached)) {
+                    return cached;
+                }
+                // Removed before the display listener was called
+                mDefaultTaskDisplayAreaCache.remove(displayId);
+            }
+            DisplayContent dc = mAtm.mRootWindowContainer.getDisplayContentOrCreate(displayId);
+            if (dc == null) {
+                return null;
+            }
+            TaskDisplayArea taskDisplayArea = dc.getDefaultTaskDisplayArea();
+            if (taskDisplayArea != null) {
+                mDefaultTaskDisplayAreaCache.put(displayId, taskDisplayArea);
+            }
+            return taskDisplayArea;
         }
-        return dc.getDefaultTaskDisplayArea();
     }
 
-    /**
-     * Calculates the {@link TaskDisplayArea} for the source of the request. The source is
-     * calculated implicitly from the request or the activity record.
-     *
-     * @param userId ID of the current active user
-     * @param activityRecord {@link ActivityRecord} that is to be shown
-     * @param request {@link Request} data for showing the {@link ActivityRecord}
-     * @return {@link TaskDisplayArea} First non {@code null} candidate display area that is allowed
-     * for the user.  It is allowed if the display has been added to the profile mapping.
-     */
-    @Nullable
-    private TaskDisplayArea sourceDisplayArea(int userId, @NonNull ActivityRecord activityRecord,
-            @Nullable Request request) {
-        List<WindowProcessController> candidateControllers = candidateControllers(activityRecord,
-                request);
-
-        for (int i = 0; i < candidateControllers.size(); i++) {
-            WindowProcessController controller = candidateControllers.get(i);
-            TaskDisplayArea candidate = controller.getTopActivityDisplayArea();
-            int displayId = candidate != null ? candidate.getDisplayId() : Display.INVALID_DISPLAY;
-            int userForDisplay = mDisplayToProfileUserMapping.get(displayId, UserHandle.USER_NULL);
-            if (userForDisplay == userId) {
-                return candidate;
-            }
+    private static boolean isAttached(@NonNull TaskDisplayArea taskDisplayArea) {
+        DisplayContent dc = taskDisplayArea.mDisplayContent;
+        return !taskDisplayArea.isRemoved() && dc != null && !dc.isRemoved();
+    }
+
+    private void clearDefaultTaskDisplayAreaCache() {
+        synchronized (mDisplayAreaCacheLock) {
+            mDefaultTaskDisplayAreaCache.clear();
         }
-        return null;
     }
 
     /**
-     * Calculates a list of {@link WindowProcessController} that can calculate the
-     * {@link TaskDisplayArea} to house the {@link ActivityRecord}. Controllers are calculated since
-     * calculating the display can be expensive. The list is ordered in the
-     * following way
+     * Calculates the {@link TaskDisplayArea} for the source of the request. The source is
+     * calculated implicitly from the request or the activity record.
+     *
+     * <p>The {@link WindowProcessController} candidates are checked in the following order, and
+     * each one is only looked up if the previous ones didn't provide an allowed display area (as
+     * calculating them can be expensive):
      * <ol>
      *     <li>Controller for the activity record from the process name and app uid</li>
      *     <li>Controller for the activity that is launching the given record</li>
      *     <li>Controller for the actual process that is launching the record</li>
      * </ol>
      *
+     * @param route routing entry of the user launching the Activity
      * @param activityRecord {@link ActivityRecord} that is to be shown
      * @param request {@link Request} data for showing the {@link ActivityRecord}
-     * @return {@link List} of {@link WindowProcessController} ordered by preference to be shown
+     * @return {@link TaskDisplayArea} First non {@code null} candidate display area that is allowed
+     * for the user.  It is allowed if the display has been added to the profile mapping.
      */
-    private List<WindowProcessController> candidateControllers(
+    @Nullable
+    private TaskDisplayArea sourceDisplayArea(@NonNull PassengerRoute route,
             @NonNull ActivityRecord activityRecord, @Nullable Request request) {
-        WindowProcessController firstController = mAtm.getProcessController(
-                activityRecord.getProcessName(), activityRecord.getUid());
-
-        WindowProcessController secondController = mAtm.getProcessController(
-                activityRecord.getLaunchedFromPid(), activityRecord.getLaunchedFromUid());
-
-        WindowProcessController thirdController = request == null ? null :
-                mAtm.getProcessController(request.realCallingPid, request.realCallingUid);
-
-        List<WindowProcessController> candidates = new ArrayList<>(3);
-
-        if (firstController != null) {
-            candidates.add(firstController);
+        TaskDisplayArea candidate = allowedTopActivityDisplayArea(route,
+                mAtm.getProcessController(activityRecord.getProcessName(),
+                        activityRecord.getUid()));
+        if (candidate != null) {
+            return candidate;
         }
-        if (secondController != null) {
-            candidates.add(secondController);
-        }
-        if (thirdController != null) {
-            candidates.add(thirdController);
+        candidate = allowedTopActivityDisplayArea(route,
+                mAtm.getProcessController(activityRecord.getLaunchedFromPid(),
+                        activityRecord.getLaunchedFromUid()));
+        if (candidate != null || request == null) {
+            return candidate;
         }
+        return allowedTopActivityDisplayArea(route,
+                mAtm.getProcessController(request.realCallingPid, request.realCallingUid));
+    }
 
-        return candidates;
+    /**
+     * Returns the display area of the top activity of the given process, if the route allows it.
+     */
+    @Nullable
+    private static TaskDisplayArea allowedTopActivityDisplayArea(@NonNull PassengerRoute route,
+            @Nullable WindowProcessController controller) {
+        if (controller == null) {
+            return null;
+        }
+        TaskDisplayArea candidate = controller.getTopActivityDisplayArea();
+        int displayId = candidate != null ? candidate.getDisplayId() : Display.INVALID_DISPLAY;
+        return route.isDisplayAllowed(displayId) ? candidate : null;
     }
 
     /**
@@ -489,21 +632,19 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
      * First check the default display for the user. If it is absent select the first passenger
      * display if present.  If both are absent return {@code null}
      *
-     * @param userId ID of the active user
+     * @param policy policy to decide with
+     * @param route routing entry of the active user, or {@code null} if it doesn't have one
      * @return {@link TaskDisplayArea} that is recommended when a display area is not specified
      */
     @Nullable
-    private TaskDisplayArea fallbackDisplayArea(int userId) {
-        int displayIdForUserProfile = mDefaultDisplayForProfileUser.get(userId,
-                Display.INVALID_DISPLAY);
-        if (displayIdForUserProfile != Display.INVALID_DISPLAY) {
-            int displayId = mDefaultDisplayForProfileUser.get(userId);
-            return getDefaultTaskDisplayAreaOnDisplay(displayId);
+    private TaskDisplayArea fallbackDisplayArea(@NonNull PolicySnapshot policy,
+            @Nullable PassengerRoute route) {
+        if (route != null && route.defaultDisplayId != Display.INVALID_DISPLAY) {
+            return getDefaultTaskDisplayAreaOnDisplay(route.defaultDisplayId);
         }
 
-        if (!mPassengerDisplays.isEmpty()) {
-            int displayId = mPassengerDisplays.get(0);
-            return getDefaultTaskDisplayAreaOnDisplay(displayId);
+        if (policy.passengerDisplays.length > 0) {
+            return getDefaultTaskDisplayAreaOnDisplay(policy.passengerDisplays[0]);
         }
 
         return null;
@@ -530,6 +671,7 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
                             ERROR_CODE_ACTIVITY_NOT_FOUND,
                             "Failed to remove " + activity.toShortString());
                 }
+                publishPolicyLocked();
                 return RESULT_SUCCESS;
             }
         }
@@ -543,7 +685,145 @@ public final class CarLaunchParamsModifier implements LaunchParamsController.Lau
         }
         synchronized (mLock) {
             mPersistentActivities.put(activity, tda);
+            publishPolicyLocked();
         }
         return RESULT_SUCCESS;
     }
+
+    /**
+     * Dumps the current policy and the statistics of the launch decisions.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        PolicySnapshot policy = mPolicy;
+        pw.println("CarLaunchParamsModifier");
+        pw.increaseIndent();
+        pw.printf("Policy generation: %d\n", policy.generation);
+        pw.printf("Current driver user: %d\n", policy.currentDriverUser);
+        pw.printf("Passenger displays: %s\n", Arrays.toString(policy.passengerDisplays));
+        int routesSize = policy.passengerRoutes.size();
+        pw.printf("%d passenger route%s\n", routesSize, routesSize == 1 ? "" : "s");
+        pw.increaseIndent();
+        for (int i = 0; i < routesSize; i++) {
+            PassengerRoute route = policy.passengerRoutes.valueAt(i);
+            pw.printf("user %d: displays=%s default=%d\n", policy.passengerRoutes.keyAt(i),
+                    Arrays.toString(route.allowedDisplays), route.defaultDisplayId);
+        }
+        pw.decreaseIndent();
+        pw.printf("Source preferred: %b (%s)\n", policy.isSourcePreferred,
+                policy.sourcePreferredComponents == null ? "all components"
+                        : policy.sourcePreferredComponents.size() + " components");
+        pw.printf("Persistent activities: %s\n", policy.persistentActivities);
+
+        pw.println("Launch decisions:");
+        pw.increaseIndent();
+        for (int i = 0; i < DECISION_NAMES.length; i++) {
+            pw.printf("%s: %d\n", DECISION_NAMES[i], mDecisionCounts.get(i));
+        }
+        pw.decreaseIndent();
+        pw.print("Launch decision latency: ");
+        mDecisionLatencyUs.dump(pw);
+        pw.decreaseIndent();
+    }
+
+    /**
+     * Publishes the current policy to {@link #onCalculate}. Must be called after every change of
+     * the policy.
+     */
+    @GuardedBy("mLock")
+    private void publishPolicyLocked() {
+        mPolicyGeneration++;
+        mPolicy = new PolicySnapshot(this);
+    }
+
+    /**
+     * Read-only copy of the policy, so {@link #onCalculate} (which is called for every Activity
+     * launch) doesn't need to contend with the binder calls updating it.
+     *
+     * <p>Besides copying the policy, it precomputes the displays each passenger can use (see
+     * {@link PassengerRoute}), so launches don't need to search the display mappings.
+     *
+     * <p>None of its fields can be modified after construction.
+     */
+    private static final class PolicySnapshot {
+        public final int generation;
+        public final int currentDriverUser;
+        /** Same order as {@link #mPassengerDisplays}. */
+        public final int[] passengerDisplays;
+        /** key: profile user id, value: its route. Users without any display have no route. */
+        public final SparseArray<PassengerRoute> passengerRoutes;
+        public final boolean isSourcePreferred;
+        /** {@code null} for all components. */
+        @Nullable
+        public final Set<ComponentName> sourcePreferredComponents;
+        public final ArrayMap<ComponentName, TaskDisplayArea> persistentActivities;
+
+        // Called while holding modifier.mLock (or from the constructor, before it's published)
+        PolicySnapshot(@NonNull CarLaunchParamsModifier modifier) {
+            generation = modifier.mPolicyGeneration;
+            currentDriverUser = modifier.mCurrentDriverUser;
+            passengerDisplays = modifier.mPassengerDisplays.toArray();
+            passengerRoutes = buildPassengerRoutes(modifier);
+            isSourcePreferred = modifier.mIsSourcePreferred;
+            sourcePreferredComponents = modifier.mSourcePreferredComponents == null ? null
+                    : Collections.unmodifiableSet(modifier.mSourcePreferredComponents);
+            persistentActivities = new ArrayMap<>(modifier.mPersistentActivities);
+        }
+
+        private static SparseArray<PassengerRoute> buildPassengerRoutes(
+                @NonNull CarLaunchParamsModifier modifier) {
+            SparseIntArray displayToUser = modifier.mDisplayToProfileUserMapping;
+            SparseIntArray defaultDisplays = modifier.mDefaultDisplayForProfileUser;
+            // key: profile user id, value: number of displays allowed for the user
+            SparseIntArray displayCounts = new SparseIntArray(defaultDisplays.size());
+            for (int i = 0; i < displayToUser.size(); i++) {
+                int userId = displayToUser.valueAt(i);
+                displayCounts.put(userId, displayCounts.get(userId) + 1);
+            }
+            for (int i = 0; i < defaultDisplays.size(); i++) {
+                int userId = defaultDisplays.keyAt(i);
+                displayCounts.put(userId, displayCounts.get(userId));
+            }
+
+            SparseArray<PassengerRoute> routes = new SparseArray<>(displayCounts.size());
+            for (int i = 0; i < displayCounts.size(); i++) {
+                int userId = displayCounts.keyAt(i);
+                int[] allowedDisplays = new int[displayCounts.valueAt(i)];
+                int count = 0;
+                // Keys of SparseIntArray are sorted, so allowedDisplays is sorted too.
+                for (int j = 0; j < displayToUser.size(); j++) {
+                    if (displayToUser.valueAt(j) == userId) {
+                        allowedDisplays[count++] = displayToUser.keyAt(j);
+                    }
+                }
+                int defaultDisplayId = defaultDisplays.get(userId, Display.INVALID_DISPLAY);
+                routes.put(userId, new PassengerRoute(allowedDisplays, defaultDisplayId));
+            }
+            return routes;
+        }
+    }
+
+    /**
+     * Where the Activities of a passenger (profile user) can be launched, precomputed from
+     * {@link #mDisplayToProfileUserMapping} and {@link #mDefaultDisplayForProfileUser} every time
+     * the policy changes.
+     */
+    private static final class PassengerRoute {
+        /** Sorted ids of the displays assigned to the user. */
+        public final int[] allowedDisplays;
+        /**
+         * Display to launch when no allowed display is requested, or INVALID_DISPLAY. Its display
+         * area is resolved at launch time (see {@link #getDefaultTaskDisplayAreaOnDisplay}), as
+         * it can change with the display, and resolving it needs the window manager lock.
+         */
+        public final int defaultDisplayId;
+
+        PassengerRoute(int[] allowedDisplays, int defaultDisplayId) {
+            this.allowedDisplays = allowedDisplays;
+            this.defaultDisplayId = defaultDisplayId;
+        }
+
+        boolean isDisplayAllowed(int displayId) {
+            return Arrays.binarySearch(allowedDisplays, displayId) >= 0;
+        }
+    }
 }
@@ -22,19 +22,26 @@ import static com.android.car.internal.common.CommonConstants.USER_LIFECYCLE_EVE
 import static com.android.car.internal.common.CommonConstants.USER_LIFECYCLE_EVENT_TYPE_STOPPING;
 import static com.android.car.internal.common.CommonConstants.USER_LIFECYCLE_EVENT_TYPE_SWITCHING;
 import static com.android.car.internal.common.CommonConstants.USER_LIFECYCLE_EVENT_TYPE_UNLOCKING;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doAnswer;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.doNothing;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.mock;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.verify;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.when;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.ArgumentMatchers.notNull;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 
 import android.annotation.UserIdInt;
 import android.car.test.mocks.AbstractExtendedMockitoTestCase;
@@ -44,21 +51,36 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.UserHandle;
+import android.util.IndentingPrintWriter;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import com.android.internal.os.BackgroundThread;
 import com.android.server.SystemService;
 import com.android.server.SystemService.TargetUser;
+import com.android.server.am.ActivityManagerService;
 import com.android.server.wm.CarLaunchParamsModifier;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * This class contains unit tests for the {@link CarServiceHelperService}.
  */
@@ -66,6 +88,9 @@ import org.mockito.Mock;
 public class CarServiceHelperServiceTest extends AbstractExtendedMockitoTestCase {
 
     private static final String TAG = CarServiceHelperServiceTest.class.getSimpleName();
+    private static final long TIMEOUT_MS = 5_000;
+    private static final int UNRESPONSIVE_PID = 4242;
+    private static final int INTERESTING_NATIVE_PID = 4343;
 
     private CarServiceHelperService mHelperSpy;
     private CarServiceHelperService mHelper;
@@ -85,13 +110,19 @@ public class CarServiceHelperServiceTest extends AbstractExtendedMockitoTestCase
 
     @Mock
     private CarDevicePolicySafetyChecker mCarDevicePolicySafetyChecker;
+    @Mock
+    private ProcfsReader mProcfsReader;
 
     /**
      * Initialize objects and setup testing environment.
      */
     @Override
     protected void onSessionBuilder(CustomMockitoSessionBuilder session) {
-        session.spyStatic(ServiceManager.class);
+        session.spyStatic(ServiceManager.class)
+                .spyStatic(ActivityManagerService.class)
+                .spyStatic(Process.class)
+                .spyStatic(BackgroundThread.class)
+                .spyStatic(CarServiceHelperService.class);
     }
 
     @Before
@@ -101,7 +132,8 @@ public class CarServiceHelperServiceTest extends AbstractExtendedMockitoTestCase
                 mCarLaunchParamsModifier,
                 mCarWatchdogDaemonHelper,
                 mCarServiceProxy,
-                mCarDevicePolicySafetyChecker);
+                mCarDevicePolicySafetyChecker,
+                mProcfsReader);
         mHelperSpy = spy(mHelper);
         when(mMockContext.getPackageManager()).thenReturn(mPackageManager);
     }
@@ -117,6 +149,17 @@ public class CarServiceHelperServiceTest extends AbstractExtendedMockitoTestCase
         verifyBindService();
     }
 
+    @Test
+    public void testOnStart_loadsNativeLibraryInBackground() throws Exception {
+        mockRegisterReceiver();
+        mockBindService();
+        mockLoadLibrary();
+
+        mHelperSpy.onStart();
+
+        verify(mHelperSpy, timeout(TIMEOUT_MS)).loadNativeLibrary();
+    }
+
     @Test
     public void testHandleCarServiceCrash() throws Exception {
         mockHandleCarServiceCrash();
@@ -221,6 +264,211 @@ public class CarServiceHelperServiceTest extends AbstractExtendedMockitoTestCase
         verifyInitBootUser();
     }
 
+    @Test
+    public void testOnBootPhase_thirdPartyCanStart_initCarLaunchParamsModifier() throws Exception {
+        mHelper.onBootPhase(SystemService.PHASE_THIRD_PARTY_APPS_CAN_START);
+
+        // Before the boot user starts launching its Activities
+        InOrder inOrder = inOrder(mCarLaunchParamsModifier, mCarServiceProxy);
+        inOrder.verify(mCarLaunchParamsModifier).init();
+        inOrder.verify(mCarServiceProxy).initBootUser();
+    }
+
+    @Test
+    public void testHandleClientsNotResponding_reportedAgainWhileTerminating() throws Exception {
+        when(mProcfsReader.readProcessInfo(UNRESPONSIVE_PID)).thenReturn(
+                new ProcfsReader.ProcessInfo(UNRESPONSIVE_PID, "unresponsive", true));
+        doReturn(new ArrayList<Integer>())
+                .when(() -> CarServiceHelperService.getInterestingNativePids());
+        CountDownLatch dumpStarted = new CountDownLatch(1);
+        CountDownLatch dumpFinished = new CountDownLatch(1);
+        doAnswer((invocation) -> {
+            dumpStarted.countDown();
+            dumpFinished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return null;
+        }).when(() -> ActivityManagerService.dumpStackTraces(any(), any(), any(), any(), any()));
+        // The kill is held, so the pid is still being terminated when it's reported the 3rd time,
+        // however long the dump took
+        CountDownLatch killed = new CountDownLatch(1);
+        CountDownLatch killReleased = new CountDownLatch(1);
+        doAnswer((invocation) -> {
+            killReleased.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            killed.countDown();
+            return null;
+        }).when(() -> Process.killProcess(UNRESPONSIVE_PID));
+
+        mHelper.handleClientsNotResponding(new int[] {UNRESPONSIVE_PID});
+        assertThat(dumpStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        // Folded into the running dump, which reports it
+        mHelper.handleClientsNotResponding(new int[] {UNRESPONSIVE_PID});
+        verify(mCarWatchdogDaemonHelper, never()).tellDumpFinished(any(), anyInt());
+        dumpFinished.countDown();
+        verify(mCarWatchdogDaemonHelper, timeout(TIMEOUT_MS)).tellDumpFinished(any(),
+                eq(UNRESPONSIVE_PID));
+        // Dumped already, so reported right away while its kill is pending
+        mHelper.handleClientsNotResponding(new int[] {UNRESPONSIVE_PID});
+
+        verify(mCarWatchdogDaemonHelper, times(2)).tellDumpFinished(any(),
+                eq(UNRESPONSIVE_PID));
+        killReleased.countDown();
+        assertThat(killed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        verify(mProcfsReader).readProcessInfo(UNRESPONSIVE_PID);
+        verify(() -> ActivityManagerService.dumpStackTraces(any(), any(), any(), any(), any()));
+    }
+
+    @Test
+    public void testHandleClientsNotResponding_tooManyPids_killedWithoutDump() throws Exception {
+        when(mProcfsReader.readProcessInfo(anyInt())).thenAnswer((invocation) -> {
+            int pid = invocation.getArgument(0);
+            return new ProcfsReader.ProcessInfo(pid, "unresponsive" + pid, true);
+        });
+        doReturn(new ArrayList<Integer>())
+                .when(() -> CarServiceHelperService.getInterestingNativePids());
+        doNothing().when(() -> ActivityManagerService.dumpStackTraces(any(), any(), any(), any(),
+                any()));
+        doNothing().when(() -> Process.killProcess(anyInt()));
+        int[] pids = new int[CarServiceHelperService.MAX_DUMPED_PIDS + 1];
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = UNRESPONSIVE_PID + i;
+        }
+        int lastPid = pids[pids.length - 1];
+
+        mHelper.handleClientsNotResponding(pids);
+
+        verify(() -> Process.killProcess(lastPid), timeout(TIMEOUT_MS));
+        verify(mCarWatchdogDaemonHelper).tellDumpFinished(any(), eq(lastPid));
+        verify(() -> ActivityManagerService.dumpStackTraces(
+                argThat((javaPids) -> javaPids.size() == CarServiceHelperService.MAX_DUMPED_PIDS
+                        && !javaPids.contains(lastPid)), any(), any(), any(), any()));
+    }
+
+    @Test
+    public void testHandleClientsNotResponding_noBudgetToDump_killedWithoutDump()
+            throws Exception {
+        mockUnresponsiveJavaApp();
+        CountDownLatch killed = mockKillProcess(UNRESPONSIVE_PID);
+        long requestUptimeMs = SystemClock.uptimeMillis()
+                - CarServiceHelperService.TERMINATION_BUDGET_MS
+                + CarServiceHelperService.DUMP_MIN_BUDGET_MS / 2;
+
+        mHelper.handleClientsNotResponding(new int[] {UNRESPONSIVE_PID}, requestUptimeMs);
+
+        assertThat(killed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        verify(mCarWatchdogDaemonHelper).tellDumpFinished(any(), eq(UNRESPONSIVE_PID));
+        verify(() -> ActivityManagerService.dumpStackTraces(any(), any(), any(), any(), any()),
+                never());
+        String dump = dumpWatchdogStats();
+        assertThat(dump).contains("skippedDumps=1");
+        assertThat(dump).contains("pid=" + UNRESPONSIVE_PID + " name=unresponsive java "
+                + "dump=skipped");
+    }
+
+    @Test
+    public void testHandleClientsNotResponding_noBudgetForFullDump_interestingNativesLeftOut()
+            throws Exception {
+        mockUnresponsiveJavaApp();
+        CountDownLatch killed = mockKillProcess(UNRESPONSIVE_PID);
+        long requestUptimeMs = SystemClock.uptimeMillis()
+                - CarServiceHelperService.TERMINATION_BUDGET_MS
+                + (CarServiceHelperService.DUMP_MIN_BUDGET_MS
+                        + CarServiceHelperService.FULL_DUMP_MIN_BUDGET_MS) / 2;
+
+        mHelper.handleClientsNotResponding(new int[] {UNRESPONSIVE_PID}, requestUptimeMs);
+
+        assertThat(killed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        verify(() -> ActivityManagerService.dumpStackTraces(
+                argThat((javaPids) -> javaPids.contains(UNRESPONSIVE_PID)), any(), any(),
+                argThat((nativePids) -> !nativePids.contains(INTERESTING_NATIVE_PID)), any()));
+        verify(() -> CarServiceHelperService.getInterestingNativePids(), never());
+        assertThat(dumpWatchdogStats()).contains("skippedDumps=0");
+    }
+
+    @Test
+    public void testHandleClientsNotResponding_fullBudget_interestingNativesDumped()
+            throws Exception {
+        mockUnresponsiveJavaApp();
+        CountDownLatch killed = mockKillProcess(UNRESPONSIVE_PID);
+
+        mHelper.handleClientsNotResponding(new int[] {UNRESPONSIVE_PID},
+                SystemClock.uptimeMillis());
+
+        assertThat(killed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        verify(() -> ActivityManagerService.dumpStackTraces(
+                argThat((javaPids) -> javaPids.contains(UNRESPONSIVE_PID)), any(), any(),
+                argThat((nativePids) -> nativePids.contains(INTERESTING_NATIVE_PID)), any()));
+    }
+
+    @Test
+    public void testHandleClientsNotResponding_killDelayCappedToDeadline() throws Exception {
+        mockUnresponsiveJavaApp();
+        CountDownLatch killed = mockKillProcess(UNRESPONSIVE_PID);
+        // Enough to dump, but less than the usual one second before the kill
+        long remainingMs = CarServiceHelperService.DUMP_MIN_BUDGET_MS + 200;
+        long requestUptimeMs = SystemClock.uptimeMillis()
+                - CarServiceHelperService.TERMINATION_BUDGET_MS + remainingMs;
+
+        mHelper.handleClientsNotResponding(new int[] {UNRESPONSIVE_PID}, requestUptimeMs);
+
+        assertThat(killed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        verify(() -> ActivityManagerService.dumpStackTraces(any(), any(), any(), any(), any()));
+        String dump = dumpWatchdogStats();
+        Matcher matcher = Pattern.compile("pid=" + UNRESPONSIVE_PID + " .* killDelay=(\\d+)ms")
+                .matcher(dump);
+        assertThat(matcher.find()).isTrue();
+        assertThat(Long.parseLong(matcher.group(1))).isAtMost(remainingMs);
+    }
+
+    @Test
+    public void testGetCachedInterestingNativePids_refreshedInBackgroundAfterTtl() {
+        ArrayList<Runnable> tasks = mockBackgroundThreadExecutor();
+        doReturn(new ArrayList<>(Arrays.asList(INTERESTING_NATIVE_PID)))
+                .when(() -> CarServiceHelperService.getInterestingNativePids());
+        long now = SystemClock.uptimeMillis();
+
+        // Not cached yet
+        ArrayList<Integer> pids = mHelper.getCachedInterestingNativePids(now);
+        assertThat(pids).containsExactly(INTERESTING_NATIVE_PID);
+        // Callers get a copy
+        pids.clear();
+        assertThat(mHelper.getCachedInterestingNativePids(now))
+                .containsExactly(INTERESTING_NATIVE_PID);
+        assertThat(tasks).isEmpty();
+
+        doReturn(new ArrayList<>(Arrays.asList(UNRESPONSIVE_PID)))
+                .when(() -> CarServiceHelperService.getInterestingNativePids());
+        long expiredUptimeMs = now + CarServiceHelperService.INTERESTING_NATIVE_PIDS_TTL_MS + 1;
+        // Still used while being refreshed
+        assertThat(mHelper.getCachedInterestingNativePids(expiredUptimeMs))
+                .containsExactly(INTERESTING_NATIVE_PID);
+        assertThat(mHelper.getCachedInterestingNativePids(expiredUptimeMs))
+                .containsExactly(INTERESTING_NATIVE_PID);
+        assertThat(tasks).hasSize(1);
+        verify(() -> CarServiceHelperService.getInterestingNativePids());
+
+        tasks.forEach(Runnable::run);
+
+        assertThat(mHelper.getCachedInterestingNativePids(expiredUptimeMs))
+                .containsExactly(UNRESPONSIVE_PID);
+        verify(() -> CarServiceHelperService.getInterestingNativePids(), times(2));
+    }
+
+    @Test
+    public void testGetCachedInterestingNativePids_noLookupWhileRefreshing() {
+        ArrayList<Runnable> tasks = mockBackgroundThreadExecutor();
+        doReturn(new ArrayList<>(Arrays.asList(INTERESTING_NATIVE_PID)))
+                .when(() -> CarServiceHelperService.getInterestingNativePids());
+        mHelper.onBootPhase(SystemService.PHASE_BOOT_COMPLETED);
+
+        assertThat(mHelper.getCachedInterestingNativePids(SystemClock.uptimeMillis())).isEmpty();
+        verify(() -> CarServiceHelperService.getInterestingNativePids(), never());
+
+        tasks.forEach(Runnable::run);
+
+        assertThat(mHelper.getCachedInterestingNativePids(SystemClock.uptimeMillis()))
+                .containsExactly(INTERESTING_NATIVE_PID);
+        verify(() -> CarServiceHelperService.getInterestingNativePids());
+    }
+
     private TargetUser newTargetUser(int userId) {
         return newTargetUser(userId, /* preCreated= */ false);
     }
@@ -232,6 +480,39 @@ public class CarServiceHelperServiceTest extends AbstractExtendedMockitoTestCase
         return targetUser;
     }
 
+    private void mockUnresponsiveJavaApp() throws Exception {
+        when(mProcfsReader.readProcessInfo(UNRESPONSIVE_PID)).thenReturn(
+                new ProcfsReader.ProcessInfo(UNRESPONSIVE_PID, "unresponsive", true));
+        doReturn(new ArrayList<>(Arrays.asList(INTERESTING_NATIVE_PID)))
+                .when(() -> CarServiceHelperService.getInterestingNativePids());
+        doNothing().when(() -> ActivityManagerService.dumpStackTraces(any(), any(), any(), any(),
+                any()));
+    }
+
+    private ArrayList<Runnable> mockBackgroundThreadExecutor() {
+        ArrayList<Runnable> tasks = new ArrayList<>();
+        Executor executor = tasks::add;
+        doReturn(executor).when(() -> BackgroundThread.getExecutor());
+        return tasks;
+    }
+
+    private CountDownLatch mockKillProcess(int pid) {
+        CountDownLatch killed = new CountDownLatch(1);
+        doAnswer((invocation) -> {
+            killed.countDown();
+            return null;
+        }).when(() -> Process.killProcess(pid));
+        return killed;
+    }
+
+    private String dumpWatchdogStats() {
+        StringWriter writer = new StringWriter();
+        try (IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ")) {
+            mHelper.dump(pw, new String[] {"--watchdog-stats"});
+        }
+        return writer.toString();
+    }
+
     private void verifyBindService() throws Exception {
         verify(mMockContext).bindServiceAsUser(
                 argThat(intent -> intent.getAction().equals(CAR_SERVICE_INTERFACE)),
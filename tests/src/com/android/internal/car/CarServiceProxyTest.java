@@ -17,17 +17,31 @@
 
 package com.android.internal.car;
 
+import static com.android.car.internal.common.CommonConstants.USER_LIFECYCLE_EVENT_TYPE_STARTING;
+import static com.android.car.internal.common.CommonConstants.USER_LIFECYCLE_EVENT_TYPE_STOPPED;
+import static com.android.car.internal.common.CommonConstants.USER_LIFECYCLE_EVENT_TYPE_STOPPING;
 import static com.android.car.internal.common.CommonConstants.USER_LIFECYCLE_EVENT_TYPE_SWITCHING;
+import static com.android.car.internal.common.CommonConstants.USER_LIFECYCLE_EVENT_TYPE_UNLOCKED;
+import static com.android.car.internal.common.CommonConstants.USER_LIFECYCLE_EVENT_TYPE_UNLOCKING;
+
+import static com.google.common.truth.Truth.assertThat;
 
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import android.car.test.mocks.AbstractExtendedMockitoTestCase;
 import android.car.test.util.UserTestingHelper.UserInfoBuilder;
 import android.content.pm.UserInfo;
 import android.os.RemoteException;
+import android.os.UserHandle;
+import android.util.IndentingPrintWriter;
 
 import com.android.car.internal.ICarSystemServerClient;
 import com.android.internal.os.IResultReceiver;
@@ -35,10 +49,16 @@ import com.android.server.SystemService.TargetUser;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 
+import java.io.StringWriter;
+import java.util.ArrayList;
+
 public class CarServiceProxyTest extends AbstractExtendedMockitoTestCase {
 
+    private static final long TIMEOUT_MS = 5_000;
+
     @Mock
     private CarServiceHelperService mCarServiceHelperService;
     @Mock
@@ -61,7 +81,7 @@ public class CarServiceProxyTest extends AbstractExtendedMockitoTestCase {
 
     @Before
     public void setUpMocks() {
-        mCarServiceProxy = new CarServiceProxy(mCarServiceHelperService);
+        mCarServiceProxy = new CarServiceProxy(mCarServiceHelperService, Runnable::run);
     }
 
     @Test
@@ -80,6 +100,38 @@ public class CarServiceProxyTest extends AbstractExtendedMockitoTestCase {
         verifyInitBootUserNeverCalled();
     }
 
+    @Test
+    public void testInitBootUser_calledAgainWhileSending() throws RemoteException {
+        connectToCarService();
+        doAnswer((invocation) -> {
+            callInitBootUser();
+            return null;
+        }).doNothing().when(mCarService).initBootUser();
+
+        callInitBootUser();
+
+        verify(mCarService, times(2)).initBootUser();
+    }
+
+    @Test
+    public void testInitBootUser_doesNotBlockLifecycleEvents() throws RemoteException {
+        connectToCarService();
+        doAnswer((invocation) -> {
+            // Would block if the binder call was made while holding the lock
+            Thread thread = new Thread(
+                    () -> callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_SWITCHING));
+            thread.start();
+            thread.join(TIMEOUT_MS);
+            assertThat(thread.isAlive()).isFalse();
+            return null;
+        }).when(mCarService).initBootUser();
+
+        callInitBootUser();
+
+        verifyInitBootUserCalled();
+        verifySendLifecycleEventCalled(USER_LIFECYCLE_EVENT_TYPE_SWITCHING);
+    }
+
     @Test
     public void testSendUserLifecycleEvent_CarServiceNotNull() throws RemoteException {
         connectToCarService();
@@ -96,6 +148,96 @@ public class CarServiceProxyTest extends AbstractExtendedMockitoTestCase {
         verifySendLifecycleEventNeverCalled();
     }
 
+    @Test
+    public void testSendUserLifecycleEvent_deliveredByExecutor() throws RemoteException {
+        ArrayList<Runnable> tasks = new ArrayList<>();
+        mCarServiceProxy = new CarServiceProxy(mCarServiceHelperService, tasks::add);
+        connectToCarService();
+
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_SWITCHING);
+
+        verifySendLifecycleEventNeverCalled();
+
+        tasks.forEach(Runnable::run);
+
+        verifySendLifecycleEventCalled(USER_LIFECYCLE_EVENT_TYPE_SWITCHING);
+    }
+
+    @Test
+    public void testSendUserLifecycleEvent_afterCarServiceCrash() throws RemoteException {
+        connectToCarService();
+        doThrow(new RemoteException()).when(mCarService).onUserLifecycleEvent(anyInt(),
+                anyInt(), anyInt());
+
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_SWITCHING);
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_SWITCHING);
+
+        // The 2nd event is not sent to the crashed service
+        verifySendLifecycleEventCalled(USER_LIFECYCLE_EVENT_TYPE_SWITCHING);
+        verify(mCarServiceHelperService).handleCarServiceCrash();
+    }
+
+    @Test
+    public void testSendUserLifecycleEvent_userStoppedBeforeDelivery() throws RemoteException {
+        ArrayList<Runnable> tasks = new ArrayList<>();
+        mCarServiceProxy = new CarServiceProxy(mCarServiceHelperService, tasks::add);
+        connectToCarService();
+
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STARTING, /* from= */ null);
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STOPPING, /* from= */ null);
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STOPPED, /* from= */ null);
+        tasks.forEach(Runnable::run);
+
+        verifySendLifecycleEventNeverCalled();
+    }
+
+    @Test
+    public void testSendUserLifecycleEvent_userStoppedAfterDelivery() throws RemoteException {
+        connectToCarService();
+
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STARTING, /* from= */ null);
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STOPPING, /* from= */ null);
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STOPPED, /* from= */ null);
+
+        int toId = mToUser.getUserIdentifier();
+        InOrder inOrder = inOrder(mCarService);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STARTING,
+                UserHandle.USER_NULL, toId);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STOPPING,
+                UserHandle.USER_NULL, toId);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STOPPED,
+                UserHandle.USER_NULL, toId);
+    }
+
+    @Test
+    public void testHandleCarServiceConnection_replaysLifecycleInOrder() throws RemoteException {
+        TargetUser systemUser = new TargetUser(new UserInfo(UserHandle.USER_SYSTEM, "system", 0));
+        mCarServiceProxy.sendUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_UNLOCKED,
+                /* from= */ null, systemUser);
+        mCarServiceProxy.sendUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_SWITCHING, systemUser,
+                mToUser);
+        mCarServiceProxy.sendUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_UNLOCKING,
+                /* from= */ null, mToUser);
+
+        connectToCarService();
+
+        int toId = mToUser.getUserIdentifier();
+        InOrder inOrder = inOrder(mCarService);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STARTING,
+                UserHandle.USER_NULL, UserHandle.USER_SYSTEM);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_UNLOCKING,
+                UserHandle.USER_NULL, UserHandle.USER_SYSTEM);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_UNLOCKED,
+                UserHandle.USER_NULL, UserHandle.USER_SYSTEM);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STARTING,
+                UserHandle.USER_NULL, toId);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_SWITCHING,
+                UserHandle.USER_SYSTEM, toId);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_UNLOCKING,
+                UserHandle.USER_NULL, toId);
+        inOrder.verifyNoMoreInteractions();
+    }
+
     @Test
     public void testHandleCarServiceConnection() throws RemoteException {
         callInitBootUser();
@@ -116,6 +258,50 @@ public class CarServiceProxyTest extends AbstractExtendedMockitoTestCase {
         verifyOnUserRemovedCalled();
     }
 
+    @Test
+    public void testDumpReconnectionMetrics() throws RemoteException {
+        callInitBootUser();
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_SWITCHING);
+        callOnUserRemoved();
+        mCarServiceProxy.onCarServiceBinderConnected();
+        connectToCarService();
+
+        String dump = dumpReconnectionMetrics();
+
+        assertThat(dump).contains("connections=1\n");
+        assertThat(dump).contains("last.backlog.initBootUser=true\n");
+        assertThat(dump).contains("last.backlog.removedUsers=3\n");
+        assertThat(dump).contains("last.backlog.factoryReset=false\n");
+        // STARTING and SWITCHING
+        assertThat(dump).contains("last.backlog.lifecycleEvents=2\n");
+        assertThat(dump).contains("replayedOperations=4\n");
+        assertThat(dump).contains("replayedLifecycleEvents=2\n");
+        assertThat(dump).contains("last.replayMs.PO_ON_USER_REMOVED=");
+        assertThat(dump).contains("last.replayMs.user" + mToUser.getUserIdentifier() + "=");
+        assertThat(dump).doesNotContain("last.handshakeMs=-1\n");
+        assertThat(dump).doesNotContain("last.lifecycleReplayMs=-1\n");
+    }
+
+    @Test
+    public void testDumpReconnectionMetrics_replayedEventsCoalesced() throws RemoteException {
+        ArrayList<Runnable> tasks = new ArrayList<>();
+        mCarServiceProxy = new CarServiceProxy(mCarServiceHelperService, tasks::add);
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STARTING, /* from= */ null);
+        connectToCarService();
+
+        // Drops the replayed STARTING event before it's sent
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STOPPING, /* from= */ null);
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STOPPED, /* from= */ null);
+        tasks.forEach(Runnable::run);
+
+        String dump = dumpReconnectionMetrics();
+
+        verifySendLifecycleEventNeverCalled();
+        assertThat(dump).contains("last.backlog.lifecycleEvents=1\n");
+        assertThat(dump).contains("replayedLifecycleEvents=0\n");
+        assertThat(dump).doesNotContain("last.lifecycleReplayMs=-1\n");
+    }
+
     @Test
     public void testOnUserRemoved_CarServiceNotNull() throws RemoteException {
         connectToCarService();
@@ -132,6 +318,69 @@ public class CarServiceProxyTest extends AbstractExtendedMockitoTestCase {
         verifyOnUserRemovedNeverCalled();
     }
 
+    @Test
+    public void testOnUserRemoved_sentAfterQueuedLifecycleEvents() throws RemoteException {
+        ArrayList<Runnable> tasks = new ArrayList<>();
+        mCarServiceProxy = new CarServiceProxy(mCarServiceHelperService, tasks::add);
+        connectToCarService();
+
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STOPPED, /* from= */ null);
+        mCarServiceProxy.onUserRemoved(mRemovedUser1);
+        tasks.forEach(Runnable::run);
+
+        InOrder inOrder = inOrder(mCarService);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STOPPED,
+                UserHandle.USER_NULL, mToUser.getUserIdentifier());
+        inOrder.verify(mCarService).onUserRemoved(mRemovedUser1);
+    }
+
+    @Test
+    public void testOnUserRemoved_sentBeforeReplayedLifecycleEvents() throws RemoteException {
+        callSendLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_UNLOCKED, /* from= */ null);
+        mCarServiceProxy.onUserRemoved(mRemovedUser1);
+
+        connectToCarService();
+
+        InOrder inOrder = inOrder(mCarService);
+        inOrder.verify(mCarService).onUserRemoved(mRemovedUser1);
+        inOrder.verify(mCarService).onUserLifecycleEvent(USER_LIFECYCLE_EVENT_TYPE_STARTING,
+                UserHandle.USER_NULL, mToUser.getUserIdentifier());
+    }
+
+    @Test
+    public void testOnUserRemoved_CarServiceNullTooManyUsers() throws RemoteException {
+        UserInfo[] users = new UserInfo[CarServiceProxy.MAX_PENDING_REMOVED_USERS + 1];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = new UserInfoBuilder(100 + i).build();
+            mCarServiceProxy.onUserRemoved(users[i]);
+        }
+
+        connectToCarService();
+
+        // Oldest one is dropped
+        verify(mCarService, never()).onUserRemoved(users[0]);
+        InOrder inOrder = inOrder(mCarService);
+        for (int i = 1; i < users.length; i++) {
+            inOrder.verify(mCarService).onUserRemoved(users[i]);
+        }
+    }
+
+    @Test
+    public void testOnUserRemoved_resentAfterCarServiceCrash() throws RemoteException {
+        doThrow(new RemoteException()).when(mCarService).onUserRemoved(mRemovedUser2);
+        callOnUserRemoved();
+        connectToCarService();
+        verify(mCarServiceHelperService).handleCarServiceCrash();
+
+        ICarSystemServerClient newCarService = mock(ICarSystemServerClient.class);
+        mCarServiceProxy.handleCarServiceConnection(newCarService);
+
+        // Only the users that were not sent yet
+        verify(newCarService, never()).onUserRemoved(mRemovedUser1);
+        verify(newCarService).onUserRemoved(mRemovedUser2);
+        verify(newCarService).onUserRemoved(mRemovedUser3);
+    }
+
     @Test
     public void testOnFactoryReset_CarServiceNotNull() throws RemoteException {
         connectToCarService();
@@ -173,6 +422,10 @@ public class CarServiceProxyTest extends AbstractExtendedMockitoTestCase {
         mCarServiceProxy.sendUserLifecycleEvent(eventType, mFromUser, mToUser);
     }
 
+    private void callSendLifecycleEvent(int eventType, TargetUser from) {
+        mCarServiceProxy.sendUserLifecycleEvent(eventType, from, mToUser);
+    }
+
     private void callOnUserRemoved() {
         mCarServiceProxy.onUserRemoved(mRemovedUser1);
         mCarServiceProxy.onUserRemoved(mRemovedUser2);
@@ -183,6 +436,14 @@ public class CarServiceProxyTest extends AbstractExtendedMockitoTestCase {
         mCarServiceProxy.onFactoryReset(callback);
     }
 
+    private String dumpReconnectionMetrics() {
+        StringWriter writer = new StringWriter();
+        try (IndentingPrintWriter pw = new IndentingPrintWriter(writer)) {
+            mCarServiceProxy.dumpReconnectionMetrics(pw);
+        }
+        return writer.toString();
+    }
+
     private void verifyInitBootUserCalled() throws RemoteException {
         verify(mCarService).initBootUser();
     }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.car;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public final class LatencyHistogramTest {
+
+    private final LatencyHistogram mHistogram = new LatencyHistogram("ms");
+
+    @Test
+    public void testBuckets_containTheirValues() {
+        int previousIndex = -1;
+        for (long value = 0; value < 10_000; value++) {
+            int index = LatencyHistogram.getBucketIndex(value);
+
+            assertThat(value).isAtLeast(LatencyHistogram.getBucketLowerBound(index));
+            assertThat(value).isAtMost(LatencyHistogram.getBucketUpperBound(index));
+            // No gaps between buckets
+            assertThat(index - previousIndex).isAtMost(1);
+            previousIndex = index;
+        }
+    }
+
+    @Test
+    public void testBuckets_smallValuesAreExact() {
+        for (int value = 0; value < LatencyHistogram.SUB_BUCKET_COUNT; value++) {
+            int index = LatencyHistogram.getBucketIndex(value);
+
+            assertThat(LatencyHistogram.getBucketLowerBound(index)).isEqualTo(value);
+            assertThat(LatencyHistogram.getBucketUpperBound(index)).isEqualTo(value);
+        }
+    }
+
+    @Test
+    public void testBuckets_maxValue() {
+        int index = LatencyHistogram.getBucketIndex(Long.MAX_VALUE);
+
+        assertThat(LatencyHistogram.getBucketUpperBound(index)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testPercentile_empty() {
+        assertThat(mHistogram.getCount()).isEqualTo(0);
+        assertThat(mHistogram.getPercentile(50)).isEqualTo(0);
+    }
+
+    @Test
+    public void testPercentile() {
+        for (int i = 1; i <= 100; i++) {
+            mHistogram.record(i);
+        }
+
+        assertThat(mHistogram.getCount()).isEqualTo(100);
+        assertThat(mHistogram.getMax()).isEqualTo(100);
+        // Upper bound of the bucket of 50 ([48-55])
+        assertThat(mHistogram.getPercentile(50)).isEqualTo(55);
+        assertThat(mHistogram.getPercentile(100)).isEqualTo(100);
+    }
+
+    @Test
+    public void testRecord_negativeValue() {
+        mHistogram.record(-42);
+
+        assertThat(mHistogram.getCount()).isEqualTo(1);
+        assertThat(mHistogram.getMax()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.car;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public final class ProcfsReaderTest {
+
+    private static final int ZYGOTE_PID = 100;
+    private static final int WEBVIEW_ZYGOTE_PID = 101;
+    private static final int INIT_PID = 1;
+
+    @Rule
+    public final TemporaryFolder mProcRoot = new TemporaryFolder();
+
+    private ProcfsReader mReader;
+
+    @Before
+    public void setUp() throws Exception {
+        mReader = new ProcfsReader(mProcRoot.getRoot().getAbsolutePath());
+        writeProcess(INIT_PID, "init", /* ppid= */ 0, "/system/bin/init\0second_stage\0");
+        writeProcess(ZYGOTE_PID, "main", INIT_PID, "zygote64\0");
+        writeProcess(WEBVIEW_ZYGOTE_PID, "webview_zygote", ZYGOTE_PID, "webview_zygote\0");
+    }
+
+    @Test
+    public void testReadProcessInfo_javaApp() throws Exception {
+        writeProcess(1000, "droid.car.app", ZYGOTE_PID, "com.android.car.app\0");
+
+        ProcfsReader.ProcessInfo info = mReader.readProcessInfo(1000);
+
+        assertThat(info.pid).isEqualTo(1000);
+        assertThat(info.name).isEqualTo("com.android.car.app");
+        assertThat(info.isJavaApp).isTrue();
+    }
+
+    @Test
+    public void testReadProcessInfo_forkedByWebViewZygote() throws Exception {
+        writeProcess(1000, "webview:sandbo", WEBVIEW_ZYGOTE_PID,
+                "com.android.webview:sandboxed_process0\0");
+
+        assertThat(mReader.readProcessInfo(1000).isJavaApp).isTrue();
+    }
+
+    @Test
+    public void testReadProcessInfo_nativeProcess() throws Exception {
+        writeProcess(1000, "vehicle@2.0-ser", INIT_PID,
+                "/vendor/bin/hw/android.hardware.automotive.vehicle@2.0-service\0");
+
+        ProcfsReader.ProcessInfo info = mReader.readProcessInfo(1000);
+
+        assertThat(info.name).isEqualTo("android.hardware.automotive.vehicle@2.0-service");
+        assertThat(info.isJavaApp).isFalse();
+    }
+
+    @Test
+    public void testReadProcessInfo_spaceSeparatedCommandLine() throws Exception {
+        writeProcess(1000, "daemon", INIT_PID, "/system/bin/daemon --flag value");
+
+        assertThat(mReader.readProcessInfo(1000).name).isEqualTo("daemon");
+    }
+
+    @Test
+    public void testReadProcessInfo_emptyCommandLine_usesComm() throws Exception {
+        writeProcess(1000, "kworker/0:1 (x)", INIT_PID, "");
+
+        ProcfsReader.ProcessInfo info = mReader.readProcessInfo(1000);
+
+        assertThat(info.name).isEqualTo("kworker/0:1 (x)");
+        assertThat(info.isJavaApp).isFalse();
+    }
+
+    @Test
+    public void testReadProcessInfo_parentGone_isNative() throws Exception {
+        writeProcess(1000, "droid.car.app", /* ppid= */ 999, "com.android.car.app\0");
+
+        ProcfsReader.ProcessInfo info = mReader.readProcessInfo(1000);
+
+        assertThat(info.name).isEqualTo("com.android.car.app");
+        assertThat(info.isJavaApp).isFalse();
+    }
+
+    @Test
+    public void testReadProcessInfo_noParent_isNative() throws Exception {
+        writeProcess(1000, "kthreadd", /* ppid= */ 0, "");
+
+        assertThat(mReader.readProcessInfo(1000).isJavaApp).isFalse();
+    }
+
+    @Test
+    public void testReadProcessInfo_processGone() {
+        assertThrows(IOException.class, () -> mReader.readProcessInfo(1000));
+    }
+
+    @Test
+    public void testReadProcessInfo_reusedForSeveralProcesses() throws Exception {
+        writeProcess(1000, "droid.car.app", ZYGOTE_PID, "com.android.car.app\0");
+        writeProcess(1001, "daemon", INIT_PID, "/system/bin/daemon\0");
+
+        assertThat(mReader.readProcessInfo(1000).isJavaApp).isTrue();
+        assertThat(mReader.readProcessInfo(1001).isJavaApp).isFalse();
+        assertThat(mReader.readProcessInfo(1000).name).isEqualTo("com.android.car.app");
+    }
+
+    private void writeProcess(int pid, String comm, int ppid, String cmdline) throws IOException {
+        File dir = new File(mProcRoot.getRoot(), Integer.toString(pid));
+        dir.mkdir();
+        String stat = pid + " (" + comm + ") S " + ppid + " " + pid + " 0 0 -1 4194560";
+        Files.write(new File(dir, "stat").toPath(), stat.getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(dir, "cmdline").toPath(), cmdline.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.car;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.util.IndentingPrintWriter;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+public final class TerminationMetricsTest {
+
+    private final TerminationMetrics mMetrics = new TerminationMetrics();
+
+    @Test
+    public void testDump_empty() {
+        String dump = dump();
+
+        assertThat(dump).contains("terminations=0 java=0 native=0 skippedDumps=0 "
+                + "missedDeadlines=0");
+        assertThat(dump).contains("Last 0 terminations:");
+    }
+
+    @Test
+    public void testOnProcessTerminated() {
+        mMetrics.onProcessTerminated(/* uptimeMs= */ 1_000, /* pid= */ 42, "com.android.car.app",
+                /* javaApp= */ true, /* dumpDurationMs= */ 300, /* killDelayMs= */ 700,
+                /* reportLatencyMs= */ 310, /* missedDeadline= */ false);
+        mMetrics.onProcessTerminated(/* uptimeMs= */ 2_000, /* pid= */ 108, "vhal",
+                /* javaApp= */ false, /* dumpDurationMs= */ -1, /* killDelayMs= */ 0,
+                /* reportLatencyMs= */ 5_200, /* missedDeadline= */ true);
+
+        String dump = dump();
+
+        assertThat(mMetrics.getTerminations()).isEqualTo(2);
+        assertThat(dump).contains("terminations=2 java=1 native=1 skippedDumps=1 "
+                + "missedDeadlines=1");
+        assertThat(dump).contains("reportLatency: count=2");
+        assertThat(dump).contains("pid=42 name=com.android.car.app java dump=300ms "
+                + "killDelay=700ms reportLatency=310ms");
+        assertThat(dump).contains("pid=108 name=vhal native dump=skipped killDelay=0ms "
+                + "reportLatency=5200ms");
+        assertThat(dump.indexOf("pid=42")).isLessThan(dump.indexOf("pid=108"));
+    }
+
+    @Test
+    public void testOnProcessTerminated_keepsLastTerminations() {
+        int total = TerminationMetrics.HISTORY_SIZE + 5;
+        for (int pid = 1; pid <= total; pid++) {
+            mMetrics.onProcessTerminated(/* uptimeMs= */ pid, pid, "process" + pid,
+                    /* javaApp= */ true, /* dumpDurationMs= */ 10, /* killDelayMs= */ 990,
+                    /* reportLatencyMs= */ 20, /* missedDeadline= */ false);
+        }
+
+        String dump = dump();
+
+        assertThat(mMetrics.getTerminations()).isEqualTo(total);
+        assertThat(dump).contains("Last " + TerminationMetrics.HISTORY_SIZE + " terminations:");
+        assertThat(dump).doesNotContain("pid=5 ");
+        assertThat(dump).contains("pid=6 ");
+        assertThat(dump).contains("pid=" + total + " ");
+        assertThat(dump.indexOf("pid=6 ")).isLessThan(dump.indexOf("pid=" + total + " "));
+    }
+
+    private String dump() {
+        StringWriter sw = new StringWriter();
+        try (IndentingPrintWriter pw = new IndentingPrintWriter(sw, "  ")) {
+            mMetrics.dump(pw, /* nowUptimeMs= */ 10_000);
+        }
+        return sw.toString();
+    }
+}
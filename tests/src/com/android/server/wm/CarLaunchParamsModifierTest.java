@@ -38,6 +38,8 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 import android.annotation.UserIdInt;
 import android.app.ActivityManager;
@@ -54,6 +56,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.ServiceSpecificException;
 import android.os.UserHandle;
+import android.util.SparseArray;
 import android.view.Display;
 import android.view.SurfaceControl;
 import android.window.DisplayAreaOrganizer;
@@ -419,6 +422,51 @@ public class CarLaunchParamsModifierTest {
         assertDisplayIsReassigned(passengerUserId1, mDisplay11ForPassenger, mDisplay10ForPassenger);
     }
 
+    @Test
+    public void testSetDisplayAllowListForUsers() {
+        mModifier.setPassengerDisplays(new int[]{mDisplay10ForPassenger.getDisplayId(),
+                mDisplay11ForPassenger.getDisplayId()});
+        final int passengerUserId1 = 100;
+        final int passengerUserId2 = 101;
+        mModifier.setDisplayAllowListForUser(passengerUserId1,
+                new int[]{mDisplay10ForPassenger.getDisplayId()});
+        mModifier.setDisplayAllowListForUser(passengerUserId2,
+                new int[]{mDisplay11ForPassenger.getDisplayId()});
+
+        // Swap the seats
+        SparseArray<int[]> allowlists = new SparseArray<>();
+        allowlists.put(passengerUserId1, new int[]{mDisplay11ForPassenger.getDisplayId()});
+        allowlists.put(passengerUserId2, new int[]{mDisplay10ForPassenger.getDisplayId()});
+        mModifier.setDisplayAllowListForUsers(allowlists);
+
+        assertDisplayIsAllowed(passengerUserId1, mDisplay11ForPassenger);
+        assertDisplayIsReassigned(passengerUserId1, mDisplay10ForPassenger,
+                mDisplay11ForPassenger);
+        assertDisplayIsAllowed(passengerUserId2, mDisplay10ForPassenger);
+        assertDisplayIsReassigned(passengerUserId2, mDisplay11ForPassenger,
+                mDisplay10ForPassenger);
+    }
+
+    @Test
+    public void testSetDisplayAllowListForUsers_conflictingDisplaysChangesNothing() {
+        mModifier.setPassengerDisplays(new int[]{mDisplay10ForPassenger.getDisplayId(),
+                mDisplay11ForPassenger.getDisplayId()});
+        final int passengerUserId1 = 100;
+        final int passengerUserId2 = 101;
+        mModifier.setDisplayAllowListForUser(passengerUserId1,
+                new int[]{mDisplay10ForPassenger.getDisplayId()});
+
+        SparseArray<int[]> allowlists = new SparseArray<>();
+        allowlists.put(passengerUserId1, new int[]{mDisplay11ForPassenger.getDisplayId()});
+        allowlists.put(passengerUserId2, new int[]{mDisplay11ForPassenger.getDisplayId()});
+
+        assertThrows(IllegalArgumentException.class,
+                () -> mModifier.setDisplayAllowListForUsers(allowlists));
+        assertDisplayIsAllowed(passengerUserId1, mDisplay10ForPassenger);
+        assertDisplayIsReassigned(passengerUserId1, mDisplay11ForPassenger,
+                mDisplay10ForPassenger);
+    }
+
     @Test
     public void testPassengerNotAllowed() {
         mModifier.setPassengerDisplays(new int[]{mDisplay10ForPassenger.getDisplayId(),
@@ -484,6 +532,22 @@ public class CarLaunchParamsModifierTest {
         assertDisplayIsReassigned(passengerUserId, mDisplay11ForPassenger, mDisplay10ForPassenger);
     }
 
+    @Test
+    public void testPassengerPolicySetBeforeInit() {
+        mModifier = new CarLaunchParamsModifier(mContext);
+        mModifier.setPassengerDisplays(new int[]{mDisplay10ForPassenger.getDisplayId(),
+                mDisplay11ForPassenger.getDisplayId()});
+        final int passengerUserId = 100;
+        mModifier.setDisplayAllowListForUser(passengerUserId,
+                new int[]{mDisplay11ForPassenger.getDisplayId()});
+
+        mModifier.init();
+
+        assertDisplayIsAllowed(passengerUserId, mDisplay11ForPassenger);
+        assertDisplayIsReassigned(passengerUserId, mDisplay0ForDriver, mDisplay11ForPassenger);
+        assertDisplayIsReassigned(passengerUserId, mDisplay10ForPassenger, mDisplay11ForPassenger);
+    }
+
     @Test
     public void testPassengerDisplayRemovedFromSetPassengerDisplays() {
         mModifier.setPassengerDisplays(new int[]{mDisplay10ForPassenger.getDisplayId(),
@@ -668,6 +732,36 @@ public class CarLaunchParamsModifierTest {
                 .isEqualTo(mDisplayArea10ForPassenger);
     }
 
+    @Test
+    public void testSourceDisplayFromProcessDisplaySkipsOtherCandidates() {
+        int userId = 10;
+        String processName = "processName";
+        int processUid = 11;
+        ActivityStarter.Request request = fakeRequest();
+        when(mActivityRecordActivity.getProcessName())
+                .thenReturn(processName);
+        when(mActivityRecordActivity.getUid())
+                .thenReturn(processUid);
+        mModifier.setPassengerDisplays(new int[]{mDisplay11ForPassenger.getDisplayId(),
+                mDisplay10ForPassenger.getDisplayId()});
+        mModifier.setDisplayAllowListForUser(userId,
+                new int[]{mDisplay10ForPassenger.getDisplayId()});
+        WindowProcessController controller = mock(WindowProcessController.class);
+        when(mActivityTaskManagerService.getProcessController(processName, processUid))
+                .thenReturn(controller);
+        when(controller.getTopActivityDisplayArea())
+                .thenReturn(mDisplayArea10ForPassenger);
+        mCurrentParams.mPreferredTaskDisplayArea = null;
+        mTask.mUserId = userId;
+
+        assertThat(mModifier.onCalculate(mTask, mWindowLayout, mActivityRecordActivity,
+                mActivityRecordSource, null, request, 0, mCurrentParams, mOutParams))
+                .isEqualTo(TaskLaunchParamsModifier.RESULT_DONE);
+        assertThat(mOutParams.mPreferredTaskDisplayArea)
+                .isEqualTo(mDisplayArea10ForPassenger);
+        verify(mActivityTaskManagerService, never()).getProcessController(anyInt(), anyInt());
+    }
+
     @Test
     public void testSourceDisplayFromLaunchingDisplayIfAvailable() {
         int userId = 10;
@@ -742,6 +836,75 @@ public class CarLaunchParamsModifierTest {
                 .isEqualTo(mDisplayArea11ForPassenger);
     }
 
+    @Test
+    public void testDefaultTaskDisplayAreaIsReResolvedAfterDisplayChanged() {
+        assertThat(mModifier.getDefaultTaskDisplayAreaOnDisplay(PASSENGER_DISPLAY_ID_10))
+                .isEqualTo(mDisplayArea10ForPassenger);
+        TaskDisplayArea newDisplayArea = mock(TaskDisplayArea.class);
+        DisplayContent dc = mRootWindowContainer.getDisplayContentOrCreate(PASSENGER_DISPLAY_ID_10);
+        when(dc.getDefaultTaskDisplayArea()).thenReturn(newDisplayArea);
+
+        // Still cached
+        assertThat(mModifier.getDefaultTaskDisplayAreaOnDisplay(PASSENGER_DISPLAY_ID_10))
+                .isEqualTo(mDisplayArea10ForPassenger);
+
+        mModifier.mDisplayListener.onDisplayChanged(PASSENGER_DISPLAY_ID_10);
+
+        assertThat(mModifier.getDefaultTaskDisplayAreaOnDisplay(PASSENGER_DISPLAY_ID_10))
+                .isEqualTo(newDisplayArea);
+    }
+
+    @Test
+    public void testDefaultTaskDisplayAreaIsReResolvedAfterRemoval() {
+        assertThat(mModifier.getDefaultTaskDisplayAreaOnDisplay(PASSENGER_DISPLAY_ID_10))
+                .isEqualTo(mDisplayArea10ForPassenger);
+        TaskDisplayArea newDisplayArea = mock(TaskDisplayArea.class);
+        DisplayContent dc = mRootWindowContainer.getDisplayContentOrCreate(PASSENGER_DISPLAY_ID_10);
+        when(dc.getDefaultTaskDisplayArea()).thenReturn(newDisplayArea);
+
+        // Before the display listener is called
+        when(mDisplayArea10ForPassenger.isRemoved()).thenReturn(true);
+
+        assertThat(mModifier.getDefaultTaskDisplayAreaOnDisplay(PASSENGER_DISPLAY_ID_10))
+                .isEqualTo(newDisplayArea);
+    }
+
+    @Test
+    public void testDefaultTaskDisplayAreaIsReResolvedAfterDisplayContentRemoval() {
+        assertThat(mModifier.getDefaultTaskDisplayAreaOnDisplay(PASSENGER_DISPLAY_ID_10))
+                .isEqualTo(mDisplayArea10ForPassenger);
+        DisplayContent oldDc =
+                mRootWindowContainer.getDisplayContentOrCreate(PASSENGER_DISPLAY_ID_10);
+        TaskDisplayArea newDisplayArea = mock(TaskDisplayArea.class);
+        DisplayContent newDc = mock(DisplayContent.class);
+        when(newDc.getDefaultTaskDisplayArea()).thenReturn(newDisplayArea);
+        when(mRootWindowContainer.getDisplayContentOrCreate(PASSENGER_DISPLAY_ID_10))
+                .thenReturn(newDc);
+
+        // Before the display listener is called
+        when(oldDc.isRemoved()).thenReturn(true);
+
+        assertThat(mModifier.getDefaultTaskDisplayAreaOnDisplay(PASSENGER_DISPLAY_ID_10))
+                .isEqualTo(newDisplayArea);
+    }
+
+    @Test
+    public void testPassengerFallbackIsReResolvedAfterDisplayChanged() {
+        mModifier.setPassengerDisplays(new int[]{mDisplay10ForPassenger.getDisplayId(),
+                mDisplay11ForPassenger.getDisplayId()});
+        int passengerUserId = 100;
+        mModifier.setDisplayAllowListForUser(passengerUserId,
+                new int[]{mDisplay10ForPassenger.getDisplayId()});
+        assertDisplayIsAssigned(passengerUserId, mDisplayArea10ForPassenger);
+        TaskDisplayArea newDisplayArea = mock(TaskDisplayArea.class);
+        DisplayContent dc = mRootWindowContainer.getDisplayContentOrCreate(PASSENGER_DISPLAY_ID_10);
+        when(dc.getDefaultTaskDisplayArea()).thenReturn(newDisplayArea);
+
+        mModifier.mDisplayListener.onDisplayChanged(PASSENGER_DISPLAY_ID_10);
+
+        assertDisplayIsAssigned(passengerUserId, newDisplayArea);
+    }
+
     @Test
     public void testSetPersistentActivityThrowsExceptionForInvalidDisplayId() {
         ComponentName mapActivity = new ComponentName("testMapPkg", "mapActivity");